@@ -0,0 +1,86 @@
+package apis.xcoder.easydrive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the overhead of {@link AsyncTask} itself, with tasks which do nothing, for the given number of tasks
+ * in flight at the same time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncTaskBenchmark {
+    @Param({"1", "16", "256"})
+    public int concurrency;
+
+    private TaskExecutor executor;
+
+    @Setup
+    public void setup() {
+        executor = TaskExecutor.bounded(Math.max(4, Runtime.getRuntime().availableProcessors()), 10_000);
+    }
+
+    @TearDown
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Starts the tasks and waits for all of them
+     */
+    @Benchmark
+    public List<Integer> callAsync() throws Exception {
+        List<AsyncTask<Integer>> tasks = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            int value = i;
+            tasks.add(AsyncTask.callAsync(() -> value, executor));
+        }
+        return AsyncTask.await(AsyncTask.allOf(tasks), 60);
+    }
+
+    /**
+     * Chains the given number of steps after a task
+     */
+    @Benchmark
+    public Integer flatMap() throws Exception {
+        AsyncTask<Integer> task = AsyncTask.callAsync(() -> 0, executor);
+        for (int i = 0; i < concurrency; i++)
+            task = task.flatMap(value -> AsyncTask.callAsync(() -> value + 1, executor));
+        return AsyncTask.await(task, 60);
+    }
+
+    /**
+     * Starts the tasks and waits for them with callbacks
+     */
+    @Benchmark
+    public int callbacks() throws Exception {
+        AsyncTask<Integer> done = new AsyncTask<>();
+        AtomicInteger remaining = new AtomicInteger(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            AsyncTask.callAsync(() -> 1, executor).setOnCompleteCallback(call -> {
+                if (remaining.decrementAndGet() == 0)
+                    done.complete(concurrency, null);
+            });
+        }
+        return AsyncTask.await(done, 60);
+    }
+}
@@ -0,0 +1,579 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process stand-in for the Drive v3 API, good enough to run EasyDrive against. It serves files
+ * list/get/create/update/delete, media downloads with ranges, resumable uploads and batches, and keeps everything
+ * in memory. Every request waits for the configured latency, and bodies are received and sent at the configured
+ * bandwidth, so that the benchmarks see the cost of round trips and transfers.
+ * <p>
+ * Queries support the clauses EasyDrive sends: {@code 'id' in parents}, {@code name = '...'}, {@code mimeType = '...'}
+ * and {@code trashed = true|false}, joined with {@code and}. Partial responses are ignored, every field is returned.
+ */
+public class FakeDrive implements Closeable {
+    static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+    private static final String BATCH_BOUNDARY = "batch_fake_drive";
+    private static final Pattern IN_PARENTS = Pattern.compile("'([^']*)' in parents");
+    private static final Pattern FIELD_EQUALS = Pattern.compile("(name|mimeType) (=|!=) '((?:[^'\\\\]|\\\\.)*)'");
+    private static final Pattern TRASHED = Pattern.compile("trashed = (true|false)");
+    private final JsonFactory json = GsonFactory.getDefaultInstance();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Node> files = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+
+    public FakeDrive() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "FakeDrive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        files.put("root", new Node(new File().setId("root").setName("My Drive").setMimeType(FOLDER_MIME).setTrashed(false), null));
+        server.start();
+    }
+
+    /**
+     * @return The root url of the API, to pass to the Drive client
+     */
+    public String getRootUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return A client connected to this server, without rate limit.
+     */
+    public EasyDrive newClient() {
+        EasyDrive drive = new EasyDrive(new NetHttpTransport(), null, getRootUrl());
+        drive.getScheduler().setRateLimit(0, 1);
+        return drive;
+    }
+
+    /**
+     * @param latencyMillis The time every request waits before being handled
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param bytesPerSecond The speed at which each request body is received and each response body is sent, 0 for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return The number of HTTP requests received so far, a batch counts as one.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Adds a file directly, without a request.
+     *
+     * @return The id of the file
+     */
+    public String addFile(String name, String parent, byte[] content) {
+        return create(new File().setName(name).setParents(Collections.singletonList(parent)), content).getId();
+    }
+
+    /**
+     * Adds a folder directly, without a request.
+     *
+     * @return The id of the folder
+     */
+    public String addFolder(String name, String parent) {
+        return create(new File().setName(name).setMimeType(FOLDER_MIME).setParents(Collections.singletonList(parent)), null).getId();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            sleep(latencyMillis);
+            String method = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            if (method == null)
+                method = exchange.getRequestMethod();
+            byte[] body = receive(exchange.getRequestBody());
+            // the client compresses the json bodies
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                    body = in.readAllBytes();
+                }
+            }
+            Response response;
+            try {
+                response = dispatch(method.toUpperCase(Locale.ROOT), exchange.getRequestURI(), exchange.getRequestHeaders()::getFirst, body);
+            } catch (RuntimeException e) {
+                response = error(400, "badRequest", String.valueOf(e));
+            } catch (IOException e) {
+                response = error(500, "internalError", String.valueOf(e));
+            }
+            response.headers.forEach(exchange.getResponseHeaders()::set);
+            exchange.sendResponseHeaders(response.status, response.body.length == 0 ? -1 : response.body.length);
+            if (response.body.length > 0)
+                send(exchange.getResponseBody(), response.body);
+        }
+    }
+
+    private Response dispatch(String method, URI uri, Function<String, String> headers, byte[] body) throws IOException {
+        String path = uri.getRawPath();
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        if (path.equals("/batch/drive/v3") || path.equals("/batch"))
+            return batch(headers.apply("Content-Type"), body);
+        if (path.startsWith("/upload/drive/v3/files"))
+            return upload(method, idOf(path, "/upload/drive/v3/files"), query, headers, body);
+        if (!path.startsWith("/drive/v3/files"))
+            return error(404, "notFound", "Unknown path " + path);
+
+        String id = idOf(path, "/drive/v3/files");
+        switch (method) {
+            case "GET":
+                if (id == null)
+                    return list(query);
+                return "media".equals(query.get("alt")) ? media(id, headers.apply("Range")) : get(id);
+            case "POST":
+                return id == null ? json(200, create(parseFile(body), null)) : error(405, "methodNotAllowed", method);
+            case "PATCH":
+                return id == null ? error(405, "methodNotAllowed", method) : update(id, parseFile(body), query, null);
+            case "DELETE":
+                return id == null ? error(405, "methodNotAllowed", method) : delete(id);
+            default:
+                return error(405, "methodNotAllowed", method);
+        }
+    }
+
+    private Response list(Map<String, String> query) throws IOException {
+        String q = query.getOrDefault("q", "");
+        int pageSize = Math.min(1000, Integer.parseInt(query.getOrDefault("pageSize", "100")));
+        int offset = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+
+        String parent = null;
+        Map<String, String> equals = new HashMap<>();
+        Map<String, String> notEquals = new HashMap<>();
+        Boolean trashed = null;
+        for (String clause : q.isEmpty() ? new String[0] : q.split(" and ")) {
+            clause = clause.trim();
+            Matcher matcher;
+            if ((matcher = IN_PARENTS.matcher(clause)).matches())
+                parent = matcher.group(1);
+            else if ((matcher = FIELD_EQUALS.matcher(clause)).matches())
+                (matcher.group(2).equals("=") ? equals : notEquals).put(matcher.group(1), matcher.group(3).replaceAll("\\\\(.)", "$1"));
+            else if ((matcher = TRASHED.matcher(clause)).matches())
+                trashed = Boolean.valueOf(matcher.group(1));
+            else
+                return error(400, "invalid", "Invalid query: " + clause);
+        }
+
+        Iterable<String> candidates = parent == null ? new ArrayList<>(new ConcurrentSkipListSet<>(files.keySet())) : children.getOrDefault(parent, Collections.emptySet());
+        List<File> page = new ArrayList<>();
+        int index = 0;
+        boolean more = false;
+        for (String id : candidates) {
+            Node node = files.get(id);
+            if (node == null || id.equals("root"))
+                continue;
+            File file = node.metadata;
+            if (equals.containsKey("name") && !equals.get("name").equals(file.getName()))
+                continue;
+            if (equals.containsKey("mimeType") && !equals.get("mimeType").equals(file.getMimeType()))
+                continue;
+            if (notEquals.containsKey("mimeType") && notEquals.get("mimeType").equals(file.getMimeType()))
+                continue;
+            if (trashed != null && trashed != Boolean.TRUE.equals(file.getTrashed()))
+                continue;
+            if (index++ < offset)
+                continue;
+            if (page.size() == pageSize) {
+                more = true;
+                break;
+            }
+            page.add(file);
+        }
+        return json(200, new FileList().setFiles(page).setNextPageToken(more ? String.valueOf(offset + pageSize) : null));
+    }
+
+    private Response get(String id) throws IOException {
+        Node node = files.get(id);
+        return node == null ? notFound(id) : json(200, node.metadata);
+    }
+
+    private Response media(String id, String range) {
+        Node node = files.get(id);
+        if (node == null)
+            return notFound(id);
+        byte[] content = node.content == null ? new byte[0] : node.content;
+        if (range == null || !range.startsWith("bytes="))
+            return new Response(200, content).header("Content-Type", "application/octet-stream");
+
+        String[] bounds = range.substring("bytes=".length()).split("-", 2);
+        long start = Long.parseLong(bounds[0]);
+        long end = bounds[1].isEmpty() ? content.length - 1 : Math.min(content.length - 1, Long.parseLong(bounds[1]));
+        if (start >= content.length)
+            return new Response(416, new byte[0]).header("Content-Range", "bytes */" + content.length);
+        return new Response(206, Arrays.copyOfRange(content, (int) start, (int) end + 1))
+                .header("Content-Type", "application/octet-stream")
+                .header("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+    }
+
+    private File create(File metadata, byte[] content) {
+        String id = String.format("f%011d", ids.incrementAndGet());
+        File file = new File()
+                .setId(id)
+                .setName(metadata.getName() == null ? "Untitled" : metadata.getName())
+                .setMimeType(metadata.getMimeType() == null ? "application/octet-stream" : metadata.getMimeType())
+                .setParents(metadata.getParents() == null ? Collections.singletonList("root") : metadata.getParents())
+                .setTrashed(false);
+        Node node = new Node(file, null);
+        if (!FOLDER_MIME.equals(file.getMimeType()))
+            node = node.withContent(content == null ? new byte[0] : content);
+        files.put(id, node);
+        for (String parent : file.getParents())
+            children.computeIfAbsent(parent, key -> new ConcurrentSkipListSet<>()).add(id);
+        return node.metadata;
+    }
+
+    private Response update(String id, File patch, Map<String, String> query, byte[] content) throws IOException {
+        Node node = files.get(id);
+        if (node == null)
+            return notFound(id);
+        File file = node.metadata.clone();
+        if (patch.getName() != null)
+            file.setName(patch.getName());
+        if (patch.getMimeType() != null)
+            file.setMimeType(patch.getMimeType());
+        if (patch.getTrashed() != null)
+            file.setTrashed(patch.getTrashed());
+        List<String> parents = new ArrayList<>(file.getParents());
+        if (query.containsKey("removeParents")) {
+            for (String parent : query.get("removeParents").split(",")) {
+                parents.remove(parent);
+                children.getOrDefault(parent, Collections.emptySet()).remove(id);
+            }
+        }
+        if (query.containsKey("addParents")) {
+            for (String parent : query.get("addParents").split(",")) {
+                parents.add(parent);
+                children.computeIfAbsent(parent, key -> new ConcurrentSkipListSet<>()).add(id);
+            }
+        }
+        file.setParents(parents);
+        Node updated = new Node(file, node.content);
+        if (content != null)
+            updated = updated.withContent(content);
+        files.put(id, updated);
+        return json(200, updated.metadata);
+    }
+
+    private Response delete(String id) {
+        Node node = files.remove(id);
+        if (node == null)
+            return notFound(id);
+        for (String parent : node.metadata.getParents())
+            children.getOrDefault(parent, Collections.emptySet()).remove(id);
+        Set<String> descendants = children.remove(id);
+        if (descendants != null) {
+            for (String child : descendants)
+                delete(child);
+        }
+        return new Response(204, new byte[0]);
+    }
+
+    private Response upload(String method, String id, Map<String, String> query, Function<String, String> headers, byte[] body) throws IOException {
+        if (!"resumable".equals(query.get("uploadType")))
+            return error(400, "badRequest", "Only resumable uploads are supported");
+
+        String sessionId = query.get("upload_id");
+        if (sessionId == null) {
+            if (id == null ? !method.equals("POST") : !method.equals("PATCH"))
+                return error(405, "methodNotAllowed", method);
+            if (id != null && !files.containsKey(id))
+                return notFound(id);
+            Session session = new Session(id, body.length == 0 ? new File() : parseFile(body));
+            sessionId = Long.toString(ids.incrementAndGet());
+            sessions.put(sessionId, session);
+            return new Response(200, new byte[0]).header("Location", getRootUrl() + "upload/drive/v3/files?uploadType=resumable&upload_id=" + sessionId);
+        }
+
+        Session session = sessions.get(sessionId);
+        if (session == null)
+            return error(404, "notFound", "Upload session not found");
+        synchronized (session) {
+            String range = headers.apply("Content-Range");
+            if (range == null) {
+                session.data.reset();
+                session.data.write(body);
+                session.total = body.length;
+            } else {
+                // "bytes first-last/total", "bytes */total" or with "*" as total when still unknown
+                String[] parts = range.substring("bytes ".length()).split("/", 2);
+                if (!parts[1].equals("*"))
+                    session.total = Long.parseLong(parts[1]);
+                if (!parts[0].equals("*")) {
+                    long first = Long.parseLong(parts[0].split("-")[0]);
+                    if (first == session.data.size())
+                        session.data.write(body);
+                }
+            }
+            if (session.total >= 0 && session.data.size() >= session.total) {
+                sessions.remove(sessionId);
+                byte[] content = session.data.toByteArray();
+                return session.fileId == null ? json(200, create(session.metadata, content)) : update(session.fileId, session.metadata, Collections.emptyMap(), content);
+            }
+            Response incomplete = new Response(308, new byte[0]);
+            if (session.data.size() > 0)
+                incomplete.header("Range", "bytes=0-" + (session.data.size() - 1));
+            return incomplete;
+        }
+    }
+
+    private Response batch(String contentType, byte[] body) throws IOException {
+        String boundary = null;
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("boundary="))
+                boundary = parameter.substring("boundary=".length()).replace("\"", "");
+        }
+        if (boundary == null)
+            return error(400, "badRequest", "Missing boundary");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        int number = 0;
+        for (String part : text.split("--" + Pattern.quote(boundary))) {
+            int split = part.indexOf("\r\n\r\n");
+            if (split < 0)
+                continue;
+            // the part headers are followed by a whole http request
+            String request = part.substring(split + 4);
+            int headerEnd = request.indexOf("\r\n\r\n");
+            String head = headerEnd < 0 ? request.trim() : request.substring(0, headerEnd);
+            String partBody = headerEnd < 0 ? "" : request.substring(headerEnd + 4);
+            if (partBody.endsWith("\r\n"))
+                partBody = partBody.substring(0, partBody.length() - 2);
+
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> partHeaders = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0)
+                    partHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+            String method = partHeaders.getOrDefault("x-http-method-override", requestLine[0]);
+            Response response = dispatch(method.toUpperCase(Locale.ROOT), URI.create(requestLine[1]), name -> partHeaders.get(name.toLowerCase(Locale.ROOT)), partBody.getBytes(StandardCharsets.ISO_8859_1));
+
+            StringBuilder head2 = new StringBuilder()
+                    .append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(++number).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+            response.headers.forEach((name, value) -> head2.append(name).append(": ").append(value).append("\r\n"));
+            head2.append("Content-Length: ").append(response.body.length).append("\r\n\r\n");
+            out.write(head2.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(response.body);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write(("--" + BATCH_BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return new Response(200, out.toByteArray()).header("Content-Type", "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+    }
+
+    private File parseFile(byte[] body) throws IOException {
+        return body.length == 0 ? new File() : json.fromString(new String(body, StandardCharsets.UTF_8), File.class);
+    }
+
+    private Response json(int status, Object content) throws IOException {
+        return new Response(status, json.toByteArray(content)).header("Content-Type", "application/json; charset=UTF-8");
+    }
+
+    private Response notFound(String id) {
+        return error(404, "notFound", "File not found: " + id);
+    }
+
+    private Response error(int status, String reason, String message) {
+        String body = "{\"error\":{\"code\":" + status + ",\"message\":\"" + message.replace("\"", "'")
+                + "\",\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\",\"message\":\"" + message.replace("\"", "'") + "\"}]}}";
+        return new Response(status, body.getBytes(StandardCharsets.UTF_8)).header("Content-Type", "application/json; charset=UTF-8");
+    }
+
+    private byte[] receive(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            throttle(start, out.size());
+        }
+        return out.toByteArray();
+    }
+
+    private void send(OutputStream out, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        for (int offset = 0; offset < body.length; offset += 64 * 1024) {
+            int count = Math.min(64 * 1024, body.length - offset);
+            out.write(body, offset, count);
+            throttle(start, offset + count);
+        }
+    }
+
+    /**
+     * Sleeps until the given number of bytes is due at the configured bandwidth.
+     */
+    private void throttle(long start, long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0)
+            return;
+        long due = start + bytes * 1_000_000_000L / rate;
+        long wait = due - System.nanoTime();
+        if (wait > 0)
+            sleep(wait / 1_000_000);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String idOf(String path, String prefix) {
+        String rest = path.substring(prefix.length());
+        return rest.length() <= 1 ? null : URLDecoder.decode(rest.substring(1), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null)
+            return parameters;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 404:
+                return "Not Found";
+            default:
+                return "Status " + status;
+        }
+    }
+
+    private static final class Node {
+        final File metadata;
+        final byte[] content;
+
+        Node(File metadata, byte[] content) {
+            this.metadata = metadata;
+            this.content = content;
+        }
+
+        Node withContent(byte[] content) {
+            File file = metadata.clone()
+                    .setSize((long) content.length)
+                    .setMd5Checksum(md5(content))
+                    .setHeadRevisionId(Long.toString(System.nanoTime(), 36));
+            return new Node(file, content);
+        }
+
+        private static String md5(byte[] content) {
+            try {
+                return Checksums.hex(MessageDigest.getInstance("MD5").digest(content));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class Session {
+        final String fileId;
+        final File metadata;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long total = -1;
+
+        Session(String fileId, File metadata) {
+            this.fileId = fileId;
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final byte[] body;
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+}
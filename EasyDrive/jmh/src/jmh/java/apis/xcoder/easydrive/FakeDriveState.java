@@ -0,0 +1,60 @@
+package apis.xcoder.easydrive;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FakeDrive} server and a client connected to it, shared by all the threads of a benchmark.
+ */
+@State(Scope.Benchmark)
+public class FakeDriveState {
+    /**
+     * The latency of every request, in milliseconds
+     */
+    @Param({"2"})
+    public long latencyMillis;
+
+    /**
+     * The bandwidth of every request in bytes per second, 0 for no limit
+     */
+    @Param({"0"})
+    public long bandwidth;
+
+    public FakeDrive server;
+    public EasyDrive drive;
+
+    @Setup
+    public void start() throws IOException {
+        server = new FakeDrive();
+        server.setLatency(latencyMillis);
+        server.setBandwidth(bandwidth);
+        drive = server.newClient();
+    }
+
+    @TearDown
+    public void stop() {
+        server.close();
+    }
+
+    static final EasyDrive.ProgressListener NO_PROGRESS = new EasyDrive.ProgressListener() {
+        @Override
+        public void onProgress(int percentage) {
+        }
+
+        @Override
+        public void onFinish(@Nullable String fileId) {
+        }
+
+        @Override
+        public void onFailed(@Nonnull Exception e) {
+        }
+    };
+}
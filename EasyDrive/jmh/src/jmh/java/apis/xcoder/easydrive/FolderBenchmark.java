@@ -0,0 +1,93 @@
+package apis.xcoder.easydrive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the operations on folders: listing, recursive creation and the size of a tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FolderBenchmark {
+    private static final AtomicLong paths = new AtomicLong();
+
+    @Benchmark
+    public FileMetadata[] listFiles(FakeDriveState state, Listing listing) throws Exception {
+        return AsyncTask.await(state.drive.listFiles(listing.folderId), 60);
+    }
+
+    @Benchmark
+    public long streamFiles(FakeDriveState state, Listing listing) {
+        return state.drive.streamFiles(listing.folderId, 1000, "id,name").count();
+    }
+
+    /**
+     * Creates a new path on every call, under a parent which already exists.
+     */
+    @Benchmark
+    public String createFolderRecursively(FakeDriveState state) throws Exception {
+        return AsyncTask.await(state.drive.createFolderRecursively("created/" + paths.incrementAndGet() + "/a/b"), 60);
+    }
+
+    @Benchmark
+    public long getFileSize(FakeDriveState state, Tree tree) throws Exception {
+        return AsyncTask.await(state.drive.getFileSize(tree.folderId), 60);
+    }
+
+    /**
+     * A folder with the given number of files
+     */
+    @State(Scope.Benchmark)
+    public static class Listing {
+        @Param({"100", "5000"})
+        public int files;
+        String folderId;
+
+        @Setup
+        public void setup(FakeDriveState state) {
+            folderId = state.server.addFolder("list", "root");
+            for (int i = 0; i < files; i++)
+                state.server.addFile("file" + i, folderId, new byte[16]);
+        }
+    }
+
+    /**
+     * A tree of the given depth, every folder has 10 files and 5 sub-folders.
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"2", "4"})
+        public int depth;
+        String folderId;
+
+        @Setup
+        public void setup(FakeDriveState state) {
+            folderId = state.server.addFolder("tree", "root");
+            fill(state.server, folderId, depth);
+        }
+
+        private static void fill(FakeDrive server, String folder, int depth) {
+            for (int i = 0; i < 10; i++)
+                server.addFile("file" + i, folder, new byte[1024]);
+            if (depth == 0)
+                return;
+            for (int i = 0; i < 5; i++)
+                fill(server, server.addFolder("folder" + i, folder), depth - 1);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package apis.xcoder.easydrive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures uploads and downloads of a file of the given size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Benchmark
+    public String uploadFile(FakeDriveState state, Content content) throws Exception {
+        return AsyncTask.await(state.drive.uploadFile(content.file, null), 60);
+    }
+
+    @Benchmark
+    public File download(FakeDriveState state, Content content, Download download) throws Exception {
+        return AsyncTask.await(state.drive.download(content.fileId, download.directory.getPath(), download.connections, FakeDriveState.NO_PROGRESS), 60);
+    }
+
+    /**
+     * The single stream download
+     */
+    @Benchmark
+    public void downloadStream(FakeDriveState state, Content content, Download download) {
+        state.drive.download(content.fileId, download.directory.getPath(), FakeDriveState.NO_PROGRESS);
+    }
+
+    /**
+     * Streams the content through pooled buffers, without touching the disk
+     */
+    @Benchmark
+    public long readContent(FakeDriveState state, Content content) throws Exception {
+        return AsyncTask.await(state.drive.readContent(content.fileId, OutputStream.nullOutputStream(), null), 60);
+    }
+
+    @Benchmark
+    public byte[] getContent(FakeDriveState state, Content content) throws Exception {
+        return AsyncTask.await(state.drive.getContent(content.fileId), 60);
+    }
+
+    /**
+     * Opens the file and reads its last 4 KB, like the footer of an archive
+     */
+    @Benchmark
+    public int readFooter(FakeDriveState state, Content content) throws Exception {
+        try (DriveChannel channel = AsyncTask.await(state.drive.openChannel(content.fileId), 60)) {
+            ByteBuffer footer = ByteBuffer.allocate((int) Math.min(4096, channel.size()));
+            channel.position(channel.size() - footer.capacity());
+            while (footer.hasRemaining()) {
+                if (channel.read(footer) < 0)
+                    break;
+            }
+            return footer.position();
+        }
+    }
+
+    /**
+     * Reads the whole file through a channel, in small reads, to measure the read-ahead
+     */
+    @Benchmark
+    public long readChannel(FakeDriveState state, Content content) throws Exception {
+        try (DriveChannel channel = AsyncTask.await(state.drive.openChannel(content.fileId), 60)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long total = 0;
+            int read;
+            while ((read = channel.read(buffer.clear())) > 0)
+                total += read;
+            return total;
+        }
+    }
+
+    /**
+     * A local file and a file on the drive of the given size
+     */
+    @State(Scope.Benchmark)
+    public static class Content {
+        @Param({"65536", "8388608"})
+        public int size;
+        File file;
+        String fileId;
+
+        @Setup
+        public void setup(FakeDriveState state) throws IOException {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            file = File.createTempFile("upload", ".bin");
+            Files.write(file.toPath(), content);
+            fileId = state.server.addFile("download.bin", "root", content);
+        }
+
+        @TearDown
+        public void cleanup() throws IOException {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * The directory to download to, emptied after every download so that nothing is resumed.
+     */
+    @State(Scope.Thread)
+    public static class Download {
+        @Param({"1", "4"})
+        public int connections;
+        File directory;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("downloads").toFile();
+        }
+
+        @TearDown(Level.Invocation)
+        public void clear() throws IOException {
+            try (Stream<Path> files = Files.list(directory.toPath())) {
+                for (Path path : (Iterable<Path>) files::iterator)
+                    Files.delete(path);
+            }
+        }
+
+        @TearDown
+        public void cleanup() throws IOException {
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
@@ -1,107 +1,413 @@
-package apis.xcoder.easydrive;
-
-import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-
-import javax.annotation.Nonnull;
-
-/**
- * AsyncTask is a convenience class for running asynchronous tasks.
- * This is java port of google play services Tasks api. This can be used in both android
- * and non-android projects. However, in android, you manually have to wrap the interface/callback
- * method to run in ui thread as by default, the callback also runs in background thread.
- * @param <T>
- */
-public class AsyncTask<T> {
-    public Exception exception;
-    public T result;
-    public boolean isSuccessful;
-    private OnCompleteCallback<T> completeCallback = call -> {};
-    private OnErrorCallback errorCallback = e -> {};
-    private OnSuccessCallback<T> successCallback = result -> {};
-
-    /**
-     * Executes the task asynchronously. This method returns immediately. It takes a callable which
-     * if returns the value, the task is considered successful. If the callable throws an exception,
-     * the task is considered failed.
-     * @param callable the task to execute
-     * @param <T> the type of the result
-     * @return the call that can be used to get the result in future
-     */
-    public static <T> AsyncTask<T> callAsync(Callable<T> callable) {
-        AsyncTask<T> call = new AsyncTask<>();
-        new Thread(() -> {
-            try {
-                Thread.sleep(1);
-                T result = callable.call();
-                call.result = result;
-                call.isSuccessful = true;
-                call.successCallback.onSuccess(result);
-            } catch (Exception e) {
-                call.exception = e;
-                call.errorCallback.onError(e);
-            }
-            call.completeCallback.onComplete(call);
-        }).start();
-        return call;
-    }
-
-    /**
-     * Makes the call synchronous and returns the result of the task. This method will block until the task is complete.
-     * if the result is not returned in time, it will throw an exception.
-     * @param call the call to wait for
-     * @param timeoutSeconds the maximum time (in seconds) to wait for the task to complete
-     * @param <T> the type of the result
-     * @return the result of the task
-     * @throws Exception if the task failed or the timeout was reached.
-     */
-    public static <T> T await(@Nonnull AsyncTask<T> call, int timeoutSeconds) throws Exception {
-        CountDownLatch latch = new CountDownLatch(1);
-        AtomicReference<T> value = new AtomicReference<>();
-        AtomicReference<Exception> exception = new AtomicReference<>();
-        call.setOnCompleteCallback((task) -> {
-            if (task.isSuccessful) {
-                value.set(task.result);
-            } else
-                exception.set(task.exception);
-
-            latch.countDown();
-        });
-        boolean completed = latch.await(timeoutSeconds, TimeUnit.SECONDS);
-        if (exception.get() != null)
-            throw exception.get();
-        else if (!completed)
-            throw new Exception("Operation timeout");
-        else
-            return value.get();
-    }
-
-    public AsyncTask<T> setOnSuccessCallback(@Nonnull OnSuccessCallback<T> onSuccessCallback) {
-        this.successCallback = onSuccessCallback;
-        return this;
-    }
-
-    public AsyncTask<T> setOnErrorCallback(@Nonnull OnErrorCallback onErrorCallback) {
-        this.errorCallback = onErrorCallback;
-        return this;
-    }
-
-    public void setOnCompleteCallback(@Nonnull OnCompleteCallback<T> onCompleteCallback) {
-        this.completeCallback = onCompleteCallback;
-    }
-
-
-    public interface OnCompleteCallback<T> {
-        void onComplete(AsyncTask<T> call);
-    }
-
-    public interface OnSuccessCallback<T> {
-        void onSuccess(T result);
-    }
-
-    public interface OnErrorCallback {
-        void onError(Exception e);
-    }
-}
+package apis.xcoder.easydrive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * AsyncTask is a convenience class for running asynchronous tasks.
+ * This is java port of google play services Tasks api. This can be used in both android
+ * and non-android projects. However, in android, you manually have to wrap the interface/callback
+ * method to run in ui thread as by default, the callback also runs in background thread.
+ * <p>
+ * Tasks can be chained without blocking any thread using {@link #map(Transformer)}, {@link #flatMap(Transformer)},
+ * {@link #allOf(Collection)} and {@link #anyOf(Collection)}, and converted to and from {@link CompletableFuture}.
+ * The callbacks and transformations run on the thread that completes the task, or on the calling thread if the
+ * task is already complete.
+ * @param <T>
+ */
+public class AsyncTask<T> {
+    private static volatile TaskExecutor defaultExecutor = TaskExecutor.bounded(Math.max(16, Runtime.getRuntime().availableProcessors() * 4), 10_000);
+    public volatile Exception exception;
+    public volatile T result;
+    public volatile boolean isSuccessful;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private boolean isComplete;
+    private Thread runner;
+    private OnCompleteCallback<T> completeCallback = call -> {};
+    private OnErrorCallback errorCallback = e -> {};
+    private OnSuccessCallback<T> successCallback = result -> {};
+
+    /**
+     * Executes the task asynchronously. This method returns immediately. It takes a callable which
+     * if returns the value, the task is considered successful. If the callable throws an exception,
+     * the task is considered failed.
+     * @param callable the task to execute
+     * @param <T> the type of the result
+     * @return the call that can be used to get the result in future
+     */
+    public static <T> AsyncTask<T> callAsync(Callable<T> callable) {
+        return callAsync(callable, defaultExecutor);
+    }
+
+    /**
+     * Executes the task asynchronously on the given executor. See {@link #callAsync(Callable)}
+     * @param callable the task to execute
+     * @param executor the executor to run the task on
+     * @param <T> the type of the result
+     * @return the call that can be used to get the result in future
+     */
+    public static <T> AsyncTask<T> callAsync(Callable<T> callable, @Nonnull Executor executor) {
+        AsyncTask<T> call = new AsyncTask<>();
+        executor.execute(() -> {
+            synchronized (call) {
+                if (call.isComplete)
+                    return;
+                call.runner = Thread.currentThread();
+            }
+            try {
+                call.complete(callable.call(), null);
+            } catch (Exception e) {
+                call.complete(null, e);
+            } finally {
+                synchronized (call) {
+                    call.runner = null;
+                }
+                // clears an interrupt from cancel() so that it does not leak into the next task of the pool
+                if (call.isCancelled())
+                    Thread.interrupted();
+            }
+        });
+        return call;
+    }
+
+    /**
+     * @param value the result of the task
+     * @return a task already completed with the given value
+     */
+    public static <T> AsyncTask<T> completed(T value) {
+        AsyncTask<T> call = new AsyncTask<>();
+        call.complete(value, null);
+        return call;
+    }
+
+    /**
+     * @param exception the exception of the task
+     * @return a task already failed with the given exception
+     */
+    public static <T> AsyncTask<T> failed(@Nonnull Exception exception) {
+        AsyncTask<T> call = new AsyncTask<>();
+        call.complete(null, exception);
+        return call;
+    }
+
+    /**
+     * Wraps a {@link CompletionStage} (like a {@link CompletableFuture}) into a task.
+     * @param stage the stage to wrap
+     * @return a task completing with the stage
+     */
+    public static <T> AsyncTask<T> from(@Nonnull CompletionStage<T> stage) {
+        AsyncTask<T> call = new AsyncTask<>();
+        stage.whenComplete((value, error) -> call.complete(value, error == null ? null : unwrap(error)));
+        return call;
+    }
+
+    /**
+     * Returns a task which succeeds with the results of all the given tasks, in the same order, once they all
+     * succeed. It fails as soon as any of them fails.
+     * @param tasks the tasks to wait for
+     * @return the combined task
+     */
+    public static <T> AsyncTask<List<T>> allOf(@Nonnull Collection<AsyncTask<T>> tasks) {
+        AsyncTask<List<T>> call = new AsyncTask<>();
+        List<AsyncTask<T>> list = new ArrayList<>(tasks);
+        if (list.isEmpty()) {
+            call.complete(new ArrayList<>(), null);
+            return call;
+        }
+        AtomicInteger remaining = new AtomicInteger(list.size());
+        for (AsyncTask<T> task : list) {
+            task.whenComplete((value, error) -> {
+                if (error != null)
+                    call.complete(null, error);
+                else if (remaining.decrementAndGet() == 0) {
+                    List<T> results = new ArrayList<>(list.size());
+                    for (AsyncTask<T> done : list)
+                        results.add(done.result);
+                    call.complete(results, null);
+                }
+            });
+        }
+        return call;
+    }
+
+    /**
+     * See {@link #allOf(Collection)}.
+     */
+    @SafeVarargs
+    public static <T> AsyncTask<List<T>> allOf(@Nonnull AsyncTask<T>... tasks) {
+        List<AsyncTask<T>> list = new ArrayList<>(tasks.length);
+        for (AsyncTask<T> task : tasks)
+            list.add(task);
+        return allOf(list);
+    }
+
+    /**
+     * Returns a task which completes like the first of the given tasks to complete, successfully or not.
+     * @param tasks the tasks to wait for
+     * @return the combined task
+     */
+    public static <T> AsyncTask<T> anyOf(@Nonnull Collection<AsyncTask<T>> tasks) {
+        if (tasks.isEmpty())
+            throw new IllegalArgumentException("No tasks given");
+        AsyncTask<T> call = new AsyncTask<>();
+        for (AsyncTask<T> task : tasks)
+            task.whenComplete(call::complete);
+        return call;
+    }
+
+    /**
+     * See {@link #anyOf(Collection)}.
+     */
+    @SafeVarargs
+    public static <T> AsyncTask<T> anyOf(@Nonnull AsyncTask<T>... tasks) {
+        List<AsyncTask<T>> list = new ArrayList<>(tasks.length);
+        for (AsyncTask<T> task : tasks)
+            list.add(task);
+        return anyOf(list);
+    }
+
+    /**
+     * Sets the executor on which the tasks are run when no executor is specified. By default, it is a bounded pool
+     * of threads (see {@link TaskExecutor#bounded(int, int)}).
+     * @param executor the executor to use, it will be wrapped in a {@link TaskExecutor} if it is not already.
+     */
+    public static void setDefaultExecutor(@Nonnull Executor executor) {
+        defaultExecutor = TaskExecutor.wrap(executor);
+    }
+
+    /**
+     * @return The executor on which the tasks are run by default. Use it to monitor the queue and active tasks.
+     */
+    public static TaskExecutor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    /**
+     * Makes the call synchronous and returns the result of the task. This method will block until the task is complete.
+     * if the result is not returned in time, it will throw an exception.
+     * @param call the call to wait for
+     * @param timeoutSeconds the maximum time (in seconds) to wait for the task to complete
+     * @param <T> the type of the result
+     * @return the result of the task
+     * @throws Exception if the task failed or the timeout was reached.
+     */
+    public static <T> T await(@Nonnull AsyncTask<T> call, int timeoutSeconds) throws Exception {
+        try {
+            return call.future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (TimeoutException e) {
+            throw new Exception("Operation timeout");
+        }
+    }
+
+    /**
+     * Returns a task which succeeds with the result of this task transformed by the given function. If this task
+     * fails, or the function throws, the returned task fails.
+     * @param transformer the function to apply to the result
+     * @return the transformed task
+     */
+    public <R> AsyncTask<R> map(@Nonnull Transformer<? super T, ? extends R> transformer) {
+        AsyncTask<R> call = new AsyncTask<>();
+        whenComplete((value, error) -> {
+            if (error != null)
+                call.complete(null, error);
+            else {
+                try {
+                    call.complete(transformer.apply(value), null);
+                } catch (Exception e) {
+                    call.complete(null, e);
+                }
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Returns a task which completes like the task returned by the given function, called with the result of this
+     * task. This is used to chain tasks one after the other without blocking.
+     * @param transformer the function returning the next task
+     * @return the chained task
+     */
+    public <R> AsyncTask<R> flatMap(@Nonnull Transformer<? super T, AsyncTask<R>> transformer) {
+        AsyncTask<R> call = new AsyncTask<>();
+        whenComplete((value, error) -> {
+            if (error != null)
+                call.complete(null, error);
+            else {
+                try {
+                    transformer.apply(value).whenComplete(call::complete);
+                } catch (Exception e) {
+                    call.complete(null, e);
+                }
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Returns a task which completes like this one, or fails with a {@link TimeoutException} if this task does not
+     * complete in time. This task itself is not cancelled.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the task with a timeout
+     */
+    public AsyncTask<T> timeout(long timeout, @Nonnull TimeUnit unit) {
+        AsyncTask<T> call = new AsyncTask<>();
+        whenComplete(call::complete);
+        CompletableFuture.delayedExecutor(timeout, unit).execute(() -> call.complete(null, new TimeoutException("Operation timeout")));
+        return call;
+    }
+
+    /**
+     * Cancels the task if it is not yet complete. The task fails with a {@link CancellationException}, and if it
+     * is running, its thread is interrupted.
+     * @return true if the task was cancelled, false if it was already complete.
+     */
+    public boolean cancel() {
+        if (!complete(null, new CancellationException("Task cancelled")))
+            return false;
+        synchronized (this) {
+            if (runner != null)
+                runner.interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the task was cancelled with {@link #cancel()}
+     */
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    /**
+     * @return true if the task is complete, successfully or not.
+     */
+    public synchronized boolean isComplete() {
+        return isComplete;
+    }
+
+    /**
+     * @return a new {@link CompletableFuture} completing with this task. Completing it does not affect the task.
+     */
+    public CompletableFuture<T> toCompletableFuture() {
+        return future.copy();
+    }
+
+    /**
+     * Completes the task, unless already complete.
+     * @return true if this call completed the task
+     */
+    boolean complete(T result, Exception exception) {
+        OnSuccessCallback<T> onSuccess;
+        OnErrorCallback onError;
+        OnCompleteCallback<T> onComplete;
+        synchronized (this) {
+            if (isComplete)
+                return false;
+            this.result = result;
+            this.exception = exception;
+            this.isSuccessful = exception == null;
+            this.isComplete = true;
+            onSuccess = successCallback;
+            onError = errorCallback;
+            onComplete = completeCallback;
+        }
+        if (exception == null)
+            future.complete(result);
+        else
+            future.completeExceptionally(exception);
+
+        if (exception == null)
+            onSuccess.onSuccess(result);
+        else
+            onError.onError(exception);
+        onComplete.onComplete(this);
+        return true;
+    }
+
+    /**
+     * Registers an internal listener, which unlike the callbacks, does not replace the others.
+     */
+    void whenComplete(BiConsumer<T, Exception> listener) {
+        future.whenComplete((value, error) -> listener.accept(value, error == null ? null : unwrap(error)));
+    }
+
+    private static Exception unwrap(Throwable error) {
+        if ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null)
+            error = error.getCause();
+        return error instanceof Exception ? (Exception) error : new ExecutionException(error);
+    }
+
+    /**
+     * Sets the callback to be called when the task succeed. If the task has already succeeded, it is called immediately.
+     */
+    public AsyncTask<T> setOnSuccessCallback(@Nonnull OnSuccessCallback<T> onSuccessCallback) {
+        synchronized (this) {
+            this.successCallback = onSuccessCallback;
+            if (!isComplete)
+                return this;
+        }
+        if (isSuccessful)
+            onSuccessCallback.onSuccess(result);
+        return this;
+    }
+
+    /**
+     * Sets the callback to be called when the task fails. If the task has already failed, it is called immediately.
+     */
+    public AsyncTask<T> setOnErrorCallback(@Nonnull OnErrorCallback onErrorCallback) {
+        synchronized (this) {
+            this.errorCallback = onErrorCallback;
+            if (!isComplete)
+                return this;
+        }
+        if (!isSuccessful)
+            onErrorCallback.onError(exception);
+        return this;
+    }
+
+    /**
+     * Sets the callback to be called when the task completes. If the task has already completed, it is called immediately.
+     */
+    public void setOnCompleteCallback(@Nonnull OnCompleteCallback<T> onCompleteCallback) {
+        synchronized (this) {
+            this.completeCallback = onCompleteCallback;
+            if (!isComplete)
+                return;
+        }
+        onCompleteCallback.onComplete(this);
+    }
+
+
+    public interface OnCompleteCallback<T> {
+        void onComplete(AsyncTask<T> call);
+    }
+
+    public interface OnSuccessCallback<T> {
+        void onSuccess(T result);
+    }
+
+    public interface OnErrorCallback {
+        void onError(Exception e);
+    }
+
+    public interface Transformer<T, R> {
+        R apply(T value) throws Exception;
+    }
+}
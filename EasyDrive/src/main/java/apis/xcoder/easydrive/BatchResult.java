@@ -0,0 +1,23 @@
+package apis.xcoder.easydrive;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of a bulk operation. Every item of the operation is either in {@link #successes} or in
+ * {@link #failures}, keyed by the id (or the name) it was requested with.
+ *
+ * @param <T> The type of the result of each item
+ */
+public class BatchResult<T> {
+    public final Map<String, T> successes = Collections.synchronizedMap(new LinkedHashMap<>());
+    public final Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * @return true if every item succeeded
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+}
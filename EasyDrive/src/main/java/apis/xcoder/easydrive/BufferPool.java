@@ -0,0 +1,83 @@
+package apis.xcoder.easydrive;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A pool of direct buffers of the same size, used to stream file contents without allocating memory for every
+ * chunk. Buffers are allocated when the pool is empty, and at-most {@code maxPooled} of them are kept when released.
+ * <p>
+ * Direct buffers are expensive to allocate and are freed only by the garbage collector, so they should be reused
+ * rather than dropped. The content read from the network is still copied into them from the stream of the HTTP
+ * client, but they are written to file and socket channels without another copy.
+ */
+public class BufferPool {
+    private static final BufferPool DEFAULT = new BufferPool(256 * 1024, 64);
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * @param bufferSize The size of the buffers in bytes
+     * @param maxPooled  The maximum number of buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize < 1 || maxPooled < 0)
+            throw new IllegalArgumentException("Invalid buffer pool size");
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return The pool shared by default, of at-most 64 buffers of 256 KB.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return A cleared buffer from the pool, or a new one if the pool is empty.
+     */
+    @Nonnull
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used after this.
+     *
+     * @param buffer A buffer acquired from this pool
+     */
+    public void release(@Nonnull ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect())
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * @return The size of the buffers in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return The number of buffers waiting to be reused
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+}
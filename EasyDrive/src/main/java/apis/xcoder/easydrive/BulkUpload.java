@@ -0,0 +1,245 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+/**
+ * An upload of many files, keeping their directory structure. A fixed number of workers take the files one after the
+ * other from the stream and upload them, so that at-most that many uploads run at a time and the stream is consumed
+ * only as fast as the files are sent.
+ * <p>
+ * Every folder is created once, when its first file is reached, and listed once to find the files which already
+ * exist in it; those are updated instead of created, the oldest one when several files have the same name. Use {@link #getFilesUploaded()} and {@link #getBytesUploaded()}
+ * to monitor the upload while it runs.
+ */
+public class BulkUpload {
+    private final EasyDrive easyDrive;
+    private final Stream<Path> stream;
+    private final Iterator<Path> files;
+    private final Path base;
+    private final String folderId;
+    private final int workers;
+    private final EasyDrive.ProgressListener listener;
+    private final BatchResult<String> result = new BatchResult<>();
+    private final Map<String, CompletableFuture<Folder>> folders = new ConcurrentHashMap<>();
+    private final AtomicInteger filesUploaded = new AtomicInteger();
+    private final AtomicLong bytesSeen = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicInteger reported = new AtomicInteger(-1);
+    private volatile long totalBytes;
+    private volatile Exception error;
+    private AsyncTask<BatchResult<String>> task;
+
+    /**
+     * @param totalBytes The total size of the files, -1 if unknown, in which case the progress is reported only
+     *                   once the whole stream has been read.
+     */
+    BulkUpload(EasyDrive easyDrive, Stream<Path> files, Path base, String folderId, int workers, long totalBytes, @Nullable EasyDrive.ProgressListener listener) {
+        this.easyDrive = easyDrive;
+        this.stream = files;
+        this.files = files.iterator();
+        this.base = base;
+        this.folderId = folderId == null ? "root" : folderId;
+        this.workers = workers;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * @return The task of the upload, with the id of every file uploaded keyed by its path relative to the base
+     * directory, with '/' as separator.
+     */
+    public AsyncTask<BatchResult<String>> getTask() {
+        return task;
+    }
+
+    /**
+     * @return The number of files uploaded so far, successfully or not.
+     */
+    public int getFilesUploaded() {
+        return filesUploaded.get();
+    }
+
+    /**
+     * @return The number of bytes of the files uploaded so far.
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    /**
+     * @return The total size of the files, -1 if the stream of files has not been read entirely yet.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void start(Executor executor) {
+        task = new AsyncTask<>();
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(() -> {
+                try {
+                    Path path;
+                    while (error == null && (path = next()) != null)
+                        upload(path);
+                } catch (Exception e) {
+                    error = e;
+                }
+                if (running.decrementAndGet() == 0)
+                    finish();
+            });
+        }
+    }
+
+    private Path next() {
+        synchronized (files) {
+            if (files.hasNext()) {
+                Path path = files.next();
+                // counted here, so that the total is complete as soon as the stream is
+                bytesSeen.addAndGet(path.toFile().length());
+                return path;
+            }
+            if (totalBytes < 0)
+                totalBytes = bytesSeen.get();
+            return null;
+        }
+    }
+
+    private void upload(Path path) {
+        String relative = base.relativize(path).toString().replace(java.io.File.separatorChar, '/');
+        long size = path.toFile().length();
+        try {
+            int slash = relative.lastIndexOf('/');
+            Folder folder = folder(slash < 0 ? "" : relative.substring(0, slash));
+            String name = path.getFileName().toString();
+            String id = easyDrive.uploadFile(path.toFile(), folder.id, folder.files.get(name));
+            folder.files.putIfAbsent(name, id);
+            result.successes.put(relative, id);
+        } catch (Exception e) {
+            result.failures.put(relative, e);
+        }
+        filesUploaded.incrementAndGet();
+        progress(bytesUploaded.addAndGet(size));
+    }
+
+    private void progress(long uploaded) {
+        long total = totalBytes;
+        if (listener == null || total < 0)
+            return;
+        int percentage = total == 0 ? 100 : (int) Math.min(100, uploaded * 100 / total);
+        int last = reported.get();
+        if (percentage > last && reported.compareAndSet(last, percentage))
+            listener.onProgress(percentage);
+    }
+
+    /**
+     * @param relative The path of the folder relative to the base directory, empty for the base directory itself.
+     * @return The folder, created and listed by the first file which needs it.
+     */
+    private Folder folder(String relative) throws IOException {
+        CompletableFuture<Folder> folder = folders.get(relative);
+        if (folder == null) {
+            CompletableFuture<Folder> created = new CompletableFuture<>();
+            folder = folders.putIfAbsent(relative, created);
+            if (folder == null) {
+                folder = created;
+                try {
+                    created.complete(resolve(relative));
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                }
+            }
+        }
+
+        try {
+            return folder.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted while waiting for the folder " + relative);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Folder resolve(String relative) throws IOException {
+        if (relative.isEmpty())
+            return list(folderId);
+
+        int slash = relative.lastIndexOf('/');
+        Folder parent = folder(slash < 0 ? "" : relative.substring(0, slash));
+        String name = relative.substring(slash + 1);
+        String existing = parent.folders.get(name);
+        if (existing != null)
+            return list(existing);
+        // another upload or createFolderRecursively may be creating the same folder since the parent was listed
+        AtomicBoolean created = new AtomicBoolean();
+        String id = easyDrive.createFolderIfAbsent(name, parent.id, created);
+        parent.folders.put(name, id);
+        // a new folder is empty, there is nothing to list
+        return created.get() ? new Folder(id) : list(id);
+    }
+
+    private Folder list(String id) throws IOException {
+        Folder folder = new Folder(id);
+        Drive drive = easyDrive.driveFor(id);
+        String pageToken = null;
+        do {
+            FileList list = drive.files().list()
+                    .setQ("'" + id + "' in parents and trashed = false")
+                    .setFields("nextPageToken,files(id,name,mimeType)")
+                    .setOrderBy("createdTime")
+                    .setPageSize(1000)
+                    .setPageToken(pageToken)
+                    .execute();
+            // the first of the files with the same name, the oldest, is the one updated
+            for (File file : list.getFiles())
+                (TreeWalker.FOLDER_MIME.equals(file.getMimeType()) ? folder.folders : folder.files).putIfAbsent(file.getName(), file.getId());
+            pageToken = list.getNextPageToken();
+        } while (pageToken != null);
+        return folder;
+    }
+
+    private void finish() {
+        stream.close();
+        Exception error = this.error;
+        if (error != null) {
+            if (listener != null)
+                listener.onFailed(error);
+            task.complete(null, error);
+        } else {
+            progress(bytesUploaded.get());
+            if (listener != null)
+                listener.onFinish(null);
+            task.complete(result, null);
+        }
+    }
+
+    private static final class Folder {
+        final String id;
+        final Map<String, String> files = new ConcurrentHashMap<>();
+        final Map<String, String> folders = new ConcurrentHashMap<>();
+
+        Folder(String id) {
+            this.id = id;
+        }
+    }
+}
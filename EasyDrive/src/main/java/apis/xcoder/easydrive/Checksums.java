@@ -0,0 +1,60 @@
+package apis.xcoder.easydrive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the checksums used by Drive to identify the content of a file.
+ */
+final class Checksums {
+    private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    private Checksums() {
+    }
+
+    /**
+     * @return The MD5 of the file as lower-case hex, like Drive's {@code md5Checksum}. Large files are mapped in
+     * memory by windows, so that they are hashed straight from the page cache without being copied.
+     */
+    static String md5(Path file) throws IOException {
+        MessageDigest digest = newMd5();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_WINDOW)
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while (channel.read(buffer) != -1) {
+                    digest.update(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
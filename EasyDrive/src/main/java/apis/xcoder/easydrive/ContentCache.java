@@ -0,0 +1,374 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A local cache of the contents of the files read through {@link EasyDrive#getContent(String)},
+ * {@link EasyDrive#getAsInputStream(String)}, {@link EasyDrive#readContent(String, EasyDrive.ContentCallback, EasyDrive.ProgressListener)}
+ * and {@link EasyDrive#download(String, String, EasyDrive.ProgressListener)}. Each file is stored in the cache
+ * directory along with its version, its {@code md5Checksum} or, if it has none, its {@code headRevisionId}.
+ * <p>
+ * Before a cached copy is used, its version is compared with the current one. The current version is taken from the
+ * {@link MetadataIndex} if one is set and ready, which is kept up-to-date by the changes feed, otherwise it is
+ * fetched with a metadata request, which is much cheaper than the download. Hits are read from memory-mapped files.
+ * <p>
+ * The cache holds at-most {@code maxBytes} bytes, evicting the least recently used files. Concurrent reads of the
+ * same file not yet cached share a single download. It is safe to use from multiple threads, but the directory must
+ * not be shared by several caches.
+ */
+public class ContentCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long size;
+    private volatile long maxStalenessNanos;
+
+    /**
+     * Creates a cache in the given directory. The files already in it, from a previous run, are reused.
+     *
+     * @param directory The directory where the contents are stored, created if needed.
+     * @param maxBytes  The maximum total size of the cached files
+     * @throws IOException if the directory cannot be created or read
+     */
+    public ContentCache(@Nonnull java.io.File directory, long maxBytes) throws IOException {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    Files.deleteIfExists(file);
+                else if (file.getFileName().toString().indexOf('.') > 0)
+                    existing.add(file);
+            }
+        }
+        // the files modified last were the last used, so they are the last to be evicted
+        existing.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        synchronized (this) {
+            for (Path file : existing) {
+                String name = file.getFileName().toString();
+                int separator = name.indexOf('.');
+                String fileId = name.substring(0, separator);
+                Entry previous = entries.put(fileId, new Entry(name.substring(separator + 1), file, Files.size(file)));
+                if (previous != null) {
+                    size -= previous.size;
+                    delete(previous.path);
+                }
+                size += Files.size(file);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Sets for how long a cached copy is used without checking that it is still current. Only the changes made
+     * through {@link EasyDrive} are seen during this time.
+     *
+     * @param maxStaleness The time, 0 to check before every read (the default).
+     * @param unit         The unit of {@code maxStaleness}
+     */
+    public void setMaxStaleness(long maxStaleness, @Nonnull TimeUnit unit) {
+        this.maxStalenessNanos = unit.toNanos(maxStaleness);
+    }
+
+    /**
+     * Removes the cached copy of the file, if any.
+     *
+     * @param fileId The file id
+     */
+    public void invalidate(@Nonnull String fileId) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(fileId);
+            if (entry != null)
+                size -= entry.size;
+        }
+        if (entry != null)
+            delete(entry.path);
+    }
+
+    /**
+     * @return The total size of the cached files in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of reads served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of reads which had to download the file, or to wait for its download
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Opens the content of the file, downloading it if the cached copy is missing or outdated. This method blocks.
+     *
+     * @return A channel on the cached copy, which stays readable even if the copy is evicted, to be closed.
+     */
+    FileChannel open(Drive drive, @Nullable MetadataIndex index, BufferPool pool, String fileId) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(fileId);
+        }
+        if (entry != null && entry.validated && System.nanoTime() - entry.validatedAt < maxStalenessNanos) {
+            FileChannel channel = open(entry.path);
+            if (channel != null) {
+                hits.increment();
+                return channel;
+            }
+        }
+
+        String version = versionOf(drive, index, fileId);
+        if (entry != null && entry.version.equals(version)) {
+            FileChannel channel = open(entry.path);
+            if (channel != null) {
+                entry.validatedAt = System.nanoTime();
+                entry.validated = true;
+                hits.increment();
+                return channel;
+            }
+        }
+
+        misses.increment();
+        String key = fileId + "." + version;
+        for (int attempt = 1; ; attempt++) {
+            CompletableFuture<Path> download = new CompletableFuture<>();
+            CompletableFuture<Path> running = downloads.putIfAbsent(key, download);
+            if (running == null) {
+                try {
+                    FileChannel channel = download(drive, pool, fileId, version);
+                    download.complete(directory.resolve(key));
+                    return channel;
+                } catch (IOException | RuntimeException e) {
+                    download.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    downloads.remove(key);
+                }
+            }
+
+            try {
+                FileChannel channel = open(running.get());
+                if (channel != null)
+                    return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the download of " + fileId);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            // evicted right after its download, which only happens with a very small budget
+            if (attempt == 3)
+                throw new IOException("The cached copy of " + fileId + " was evicted before being read");
+        }
+    }
+
+    /**
+     * Reads a channel opened by {@link #open(Drive, MetadataIndex, BufferPool, String)} by mapping it in memory,
+     * calling the callback with every mapped window.
+     *
+     * @return The number of bytes read
+     */
+    static long read(FileChannel channel, EasyDrive.ContentCallback callback) throws IOException {
+        long size = channel.size();
+        for (long position = 0; position < size; position += MAP_WINDOW)
+            callback.onData(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+        return size;
+    }
+
+    /**
+     * @return A stream reading a channel opened by {@link #open(Drive, MetadataIndex, BufferPool, String)} through
+     * mapped windows, which closes the channel when closed.
+     */
+    static InputStream newInputStream(FileChannel channel) {
+        return new InputStream() {
+            private ByteBuffer window = ByteBuffer.allocate(0);
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? window.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0)
+                    return 0;
+                if (!fill())
+                    return -1;
+                int count = Math.min(length, window.remaining());
+                window.get(bytes, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return window.remaining();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+            private boolean fill() throws IOException {
+                if (window.hasRemaining())
+                    return true;
+                long size = channel.size();
+                if (position >= size)
+                    return false;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                position += window.remaining();
+                return true;
+            }
+        };
+    }
+
+    private static String versionOf(Drive drive, MetadataIndex index, String fileId) throws IOException {
+        if (index != null && index.isReady()) {
+            File file = index.get(fileId);
+            if (file != null && file.getMd5Checksum() != null)
+                return file.getMd5Checksum();
+        }
+        File file = drive.files().get(fileId).setFields("md5Checksum,headRevisionId").execute();
+        if (file.getMd5Checksum() != null)
+            return file.getMd5Checksum();
+        if (file.getHeadRevisionId() != null)
+            return file.getHeadRevisionId().replaceAll("[^A-Za-z0-9_-]", "_");
+        throw new IOException("File " + fileId + " has no binary content");
+    }
+
+    /**
+     * Downloads the file to the cache.
+     *
+     * @return A channel on the downloaded file, opened before it can be evicted.
+     */
+    private FileChannel download(Drive drive, BufferPool pool, String fileId, String version) throws IOException {
+        Path path = directory.resolve(fileId + "." + version);
+        Path temp = directory.resolve(fileId + "." + version + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new ContentReader(drive, pool).read(fileId, data -> {
+                while (data.hasRemaining())
+                    channel.write(data);
+            }, null);
+        } catch (IOException | RuntimeException e) {
+            delete(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel content = FileChannel.open(path, StandardOpenOption.READ);
+
+        Entry entry = new Entry(version, path, content.size());
+        entry.validatedAt = System.nanoTime();
+        entry.validated = true;
+        Entry previous;
+        synchronized (this) {
+            previous = entries.put(fileId, entry);
+            if (previous != null)
+                size -= previous.size;
+            size += entry.size;
+        }
+        if (previous != null && !previous.path.equals(path))
+            delete(previous.path);
+        evict();
+        return content;
+    }
+
+    /**
+     * Removes the least recently used files until the cache fits in its budget. A file larger than the whole budget
+     * is removed right after it is downloaded, the channel opened on it stays readable.
+     */
+    private void evict() {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                iterator.remove();
+                size -= entry.size;
+                evicted.add(entry.path);
+            }
+        }
+        for (Path path : evicted)
+            delete(path);
+    }
+
+    /**
+     * @return A channel on the file, null if the file is gone.
+     */
+    private static FileChannel open(Path path) throws IOException {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // the file is still open on some platforms, it is replaced or evicted again later
+        }
+    }
+
+    private static final class Entry {
+        final String version;
+        final Path path;
+        final long size;
+        volatile long validatedAt;
+        volatile boolean validated;
+
+        Entry(String version, Path path, long size) {
+            this.version = version;
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
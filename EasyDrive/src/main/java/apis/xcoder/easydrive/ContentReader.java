@@ -0,0 +1,191 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Streams the content of a file through buffers of a {@link BufferPool}. A read needs a single request: the length
+ * used for the progress comes from the response itself, and the memory used does not depend on the size of the file.
+ * If a {@link ContentCache} is given, the files are read from it instead.
+ * <p>
+ * The HTTP client only gives the content as an {@link InputStream}, so every chunk is copied once from it into the
+ * pooled buffer. What the pool saves is the allocation of a buffer per chunk and, since its buffers are direct, the
+ * further copy the JDK makes of a heap buffer written to a file or socket channel.
+ */
+class ContentReader {
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Drive drive;
+    private final BufferPool pool;
+    private final ContentCache cache;
+    private final MetadataIndex index;
+
+    ContentReader(Drive drive, BufferPool pool) {
+        this(drive, pool, null, null);
+    }
+
+    /**
+     * @param cache The cache to read the files from, null to always download them.
+     * @param index The index from which the cache checks that its copies are current, null to ask the drive.
+     */
+    ContentReader(Drive drive, BufferPool pool, @Nullable ContentCache cache, @Nullable MetadataIndex index) {
+        this.drive = drive;
+        this.pool = pool;
+        this.cache = cache;
+        this.index = index;
+    }
+
+    /**
+     * @return A stream of the content of the file, to be closed.
+     */
+    InputStream open(String fileId) throws IOException {
+        if (cache != null)
+            return ContentCache.newInputStream(cache.open(drive, index, pool, fileId));
+        return drive.files().get(fileId).executeMedia().getContent();
+    }
+
+    /**
+     * Reads the whole file, calling the callback with every buffer filled. The listener is notified of the progress
+     * at-most once per percent and every 100 ms, and of the completion.
+     *
+     * @return The number of bytes read
+     */
+    long read(String fileId, EasyDrive.ContentCallback callback, EasyDrive.ProgressListener listener) throws IOException {
+        try {
+            long read;
+            if (cache != null) {
+                try (FileChannel channel = cache.open(drive, index, pool, fileId)) {
+                    read = ContentCache.read(channel, callback);
+                }
+                if (listener != null)
+                    listener.onProgress(100);
+            } else {
+                read = read(drive.files().get(fileId).executeMedia(), callback, listener);
+            }
+            if (listener != null)
+                listener.onFinish(null);
+            return read;
+        } catch (IOException | RuntimeException e) {
+            if (listener != null)
+                listener.onFailed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole file into an array, sized from the length of the response when it is known.
+     */
+    byte[] readAll(String fileId) throws IOException {
+        if (cache != null) {
+            try (FileChannel channel = cache.open(drive, index, pool, fileId)) {
+                if (channel.size() > MAX_ARRAY_SIZE)
+                    throw new IOException("File " + fileId + " is too large to be read in memory (" + channel.size() + " bytes)");
+                byte[] bytes = new byte[(int) channel.size()];
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes.length).get(bytes);
+                return bytes;
+            }
+        }
+
+        HttpResponse response = drive.files().get(fileId).executeMedia();
+        long length = lengthOf(response);
+        if (length > MAX_ARRAY_SIZE) {
+            response.disconnect();
+            throw new IOException("File " + fileId + " is too large to be read in memory (" + length + " bytes)");
+        }
+
+        if (length >= 0) {
+            byte[] bytes = new byte[(int) length];
+            int[] position = new int[1];
+            read(response, data -> {
+                int count = Math.min(data.remaining(), bytes.length - position[0]);
+                data.get(bytes, position[0], count);
+                position[0] += count;
+            }, null);
+            return position[0] == bytes.length ? bytes : Arrays.copyOf(bytes, position[0]);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        read(response, data -> {
+            while (data.hasRemaining()) {
+                int count = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }, null);
+        return out.toByteArray();
+    }
+
+    private long read(HttpResponse response, EasyDrive.ContentCallback callback, EasyDrive.ProgressListener listener) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            InputStream in = response.getContent();
+            if (in == null)
+                return 0;
+
+            long length = lengthOf(response);
+            long total = 0;
+            int percentage = 0;
+            long nextPercentage = length > 0 ? (length + 99) / 100 : Long.MAX_VALUE;
+            long reportedAt = System.nanoTime();
+            // copies from the stream into the buffer, through a small array reused for the whole read
+            try (ReadableByteChannel source = Channels.newChannel(in)) {
+                boolean end = false;
+                while (!end) {
+                    buffer.clear();
+                    // fill the buffer, so that the callback is called with as much data as possible
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0) {
+                            end = true;
+                            break;
+                        }
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining())
+                        break;
+                    total += buffer.remaining();
+                    callback.onData(buffer);
+
+                    if (total >= nextPercentage) {
+                        int current = (int) Math.min(100, total * 100 / length);
+                        nextPercentage = (length * (current + 1) + 99) / 100;
+                        long now = System.nanoTime();
+                        if (current > percentage && (current == 100 || now - reportedAt >= PROGRESS_INTERVAL)) {
+                            percentage = current;
+                            reportedAt = now;
+                            if (listener != null)
+                                listener.onProgress(current);
+                        }
+                    }
+                }
+            }
+            if (listener != null && length > 0 && total >= length && percentage < 100)
+                listener.onProgress(100);
+            return total;
+        } finally {
+            pool.release(buffer);
+            response.disconnect();
+        }
+    }
+
+    /**
+     * @return The length of the content of the response, -1 if unknown or if the content is decompressed.
+     */
+    private static long lengthOf(HttpResponse response) {
+        Long length = response.getHeaders().getContentLength();
+        return length == null || response.getContentEncoding() != null ? -1 : length;
+    }
+}
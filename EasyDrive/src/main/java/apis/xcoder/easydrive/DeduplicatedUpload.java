@@ -0,0 +1,137 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads many files to the same folder, skipping the ones whose content is already on the drive under the same
+ * name. The files are hashed in parallel, one worker per core, while the folder is listed once with the checksums
+ * of its files. Only then the files which differ are uploaded, a few at a time.
+ */
+class DeduplicatedUpload {
+    private final EasyDrive easyDrive;
+    private final Collection<java.io.File> files;
+    private final String folderId;
+    private final int maxConcurrentUploads;
+    private final BatchResult<UploadResult> result = new BatchResult<>();
+    private final Map<String, String> checksums = new ConcurrentHashMap<>();
+    private final Map<String, File> remote = new ConcurrentHashMap<>();
+    private volatile boolean listed;
+
+    DeduplicatedUpload(EasyDrive easyDrive, Collection<java.io.File> files, String folderId, int maxConcurrentUploads) {
+        this.easyDrive = easyDrive;
+        this.files = files;
+        this.folderId = folderId;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    /**
+     * @param executor       The executor on which the files are hashed and the folder is listed
+     * @param uploadExecutor The executor on which the files are uploaded
+     */
+    AsyncTask<BatchResult<UploadResult>> start(Executor executor, Executor uploadExecutor) {
+        AsyncTask<BatchResult<UploadResult>> task = new AsyncTask<>();
+        Queue<java.io.File> pending = new ConcurrentLinkedQueue<>(files);
+        if (pending.isEmpty()) {
+            task.complete(result, null);
+            return task;
+        }
+
+        int hashers = Math.min(Runtime.getRuntime().availableProcessors(), pending.size());
+        // the listing and every hasher, the last one to finish starts the uploads
+        AtomicInteger running = new AtomicInteger(hashers + 1);
+        Runnable finish = () -> {
+            if (running.decrementAndGet() == 0)
+                upload(task, uploadExecutor);
+        };
+
+        executor.execute(() -> {
+            try {
+                listFolder();
+                listed = true;
+            } catch (Exception e) {
+                // without the listing, the changed files are looked up again before their upload
+                remote.clear();
+            }
+            finish.run();
+        });
+        for (int i = 0; i < hashers; i++) {
+            executor.execute(() -> {
+                java.io.File file;
+                while ((file = pending.poll()) != null) {
+                    try {
+                        checksums.put(file.getPath(), Checksums.md5(file.toPath()));
+                    } catch (Exception e) {
+                        result.failures.put(file.getPath(), e);
+                    }
+                }
+                finish.run();
+            });
+        }
+        return task;
+    }
+
+    private void listFolder() throws Exception {
+        String parent = folderId == null ? "root" : folderId;
+        Drive drive = easyDrive.driveFor(parent);
+        String pageToken = null;
+        do {
+            FileList list = drive.files().list()
+                    .setQ("'" + parent + "' in parents and trashed = false")
+                    .setFields("nextPageToken,files(id,name,md5Checksum)")
+                    .setPageSize(1000)
+                    .setPageToken(pageToken)
+                    .execute();
+            for (File file : list.getFiles())
+                remote.putIfAbsent(file.getName(), file);
+            pageToken = list.getNextPageToken();
+        } while (pageToken != null);
+    }
+
+    private void upload(AsyncTask<BatchResult<UploadResult>> task, Executor executor) {
+        Queue<java.io.File> changed = new ConcurrentLinkedQueue<>();
+        for (java.io.File file : files) {
+            String md5 = checksums.get(file.getPath());
+            if (md5 == null)
+                continue;
+            File existing = remote.get(file.getName());
+            if (existing != null && md5.equals(existing.getMd5Checksum()))
+                result.successes.put(file.getPath(), new UploadResult(existing.getId(), md5, false));
+            else
+                changed.add(file);
+        }
+
+        int workers = Math.min(maxConcurrentUploads, changed.size());
+        if (workers == 0) {
+            task.complete(result, null);
+            return;
+        }
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(() -> {
+                java.io.File file;
+                while ((file = changed.poll()) != null) {
+                    try {
+                        File existing = remote.get(file.getName());
+                        String id = existing != null ? existing.getId() : listed ? null : easyDrive.findFileId(file.getName(), folderId);
+                        id = easyDrive.uploadFile(file, folderId, id);
+                        result.successes.put(file.getPath(), new UploadResult(id, checksums.get(file.getPath()), true));
+                    } catch (Exception e) {
+                        result.failures.put(file.getPath(), e);
+                    }
+                }
+                if (running.decrementAndGet() == 0)
+                    task.complete(result, null);
+            });
+        }
+    }
+}
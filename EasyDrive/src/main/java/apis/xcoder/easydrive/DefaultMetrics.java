@@ -0,0 +1,164 @@
+package apis.xcoder.easydrive;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps the measurements of {@link DriveMetrics} in memory, to be read with {@link #snapshot()}.
+ * <p>
+ * Recording takes no lock and allocates nothing once an operation or request type has been seen: latencies go
+ * to fixed-size histograms with 8 buckets per power of two, and counters are atomic.
+ */
+public class DefaultMetrics implements DriveMetrics {
+    private static final int STATUS_CODES = 600;
+    private final Map<String, Histogram> operations = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> requests = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    // index 0 is for the requests without response
+    private final AtomicLongArray responses = new AtomicLongArray(STATUS_CODES);
+    private final AtomicLongArray retries = new AtomicLongArray(STATUS_CODES);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    @Override
+    public void recordOperation(@Nonnull String operation, long nanos, boolean successful) {
+        histogram(operations, operation).record(nanos, !successful);
+    }
+
+    @Override
+    public void recordRequest(@Nonnull String type, int statusCode, long nanos) {
+        histogram(requests, type).record(nanos, statusCode < 0 || statusCode >= 400);
+        responses.incrementAndGet(index(statusCode));
+    }
+
+    @Override
+    public void recordRetry(@Nonnull String type, int statusCode) {
+        retries.incrementAndGet(index(statusCode));
+    }
+
+    @Override
+    public void recordBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    @Override
+    public void recordBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void registerGauge(@Nonnull String name, @Nonnull LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return The measurements recorded so far, and the current value of the gauges.
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, MetricsSnapshot.Latency> operations = new TreeMap<>();
+        this.operations.forEach((name, histogram) -> operations.put(name, histogram.snapshot()));
+        Map<String, MetricsSnapshot.Latency> requests = new TreeMap<>();
+        this.requests.forEach((name, histogram) -> requests.put(name, histogram.snapshot()));
+        Map<String, Long> gauges = new TreeMap<>();
+        this.gauges.forEach((name, gauge) -> gauges.put(name, gauge.getAsLong()));
+        return new MetricsSnapshot(System.nanoTime(), operations, requests, counts(responses), counts(retries),
+                bytesSent.sum(), bytesReceived.sum(), gauges);
+    }
+
+    private static Histogram histogram(Map<String, Histogram> histograms, String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    private static int index(int statusCode) {
+        return statusCode > 0 && statusCode < STATUS_CODES ? statusCode : 0;
+    }
+
+    private static Map<Integer, Long> counts(AtomicLongArray counters) {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.get(i);
+            if (count > 0)
+                counts.put(i == 0 ? -1 : i, count);
+        }
+        return counts;
+    }
+
+    /**
+     * A log-linear histogram: values below 16 have their own bucket, then every power of two is split in 8.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR = 16;
+        private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (63 - 4) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value, boolean failed) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            if (failed)
+                failures.increment();
+            // only write when it changes, which is rare once warmed up
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        MetricsSnapshot.Latency snapshot() {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long n = count.sum();
+            long max = this.max.get();
+            // the middle of the last bucket can be above the largest value in it
+            return new MetricsSnapshot.Latency(n, failures.sum(), n == 0 ? 0 : sum.sum() / n, max,
+                    Math.min(max, percentile(counts, total, 0.5)), Math.min(max, percentile(counts, total, 0.9)),
+                    Math.min(max, percentile(counts, total, 0.99)));
+        }
+
+        private static long percentile(long[] counts, long total, double quantile) {
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return middle(i);
+            }
+            return middle(counts.length - 1);
+        }
+
+        static int bucket(long value) {
+            if (value < LINEAR)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long middle(int bucket) {
+            if (bucket < LINEAR)
+                return bucket;
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            long lower = (long) (SUB_BUCKETS + sub) << (exponent - 3);
+            return lower + (1L << (exponent - 3)) / 2;
+        }
+    }
+}
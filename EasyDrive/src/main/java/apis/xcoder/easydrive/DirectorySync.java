@@ -0,0 +1,368 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Mirrors a local directory to a drive folder, uploading only what changed since the last sync. A manifest file
+ * records, for every local file, the id of its copy on the drive along with its size, modification time and MD5.
+ * <p>
+ * A file whose size and modification time match the manifest is skipped without any request. Otherwise its MD5 is
+ * computed, and it is uploaded only if it differs from the one in the manifest or, for files not in the manifest,
+ * from the {@code md5Checksum} of the file with the same name on the drive.
+ */
+public class DirectorySync {
+    private final EasyDrive easyDrive;
+    private final Path root;
+    private final String folderId;
+    private final Path manifestFile;
+    private final Options options;
+    private final Map<String, Entry> files = new ConcurrentHashMap<>();
+    private final Map<String, String> folders = new ConcurrentHashMap<>();
+
+    DirectorySync(EasyDrive easyDrive, Path root, String folderId, Path manifestFile, Options options) {
+        this.easyDrive = easyDrive;
+        this.root = root;
+        this.folderId = folderId == null ? "root" : folderId;
+        this.manifestFile = manifestFile;
+        this.options = options;
+    }
+
+    AsyncTask<Result> start(Executor executor) {
+        AsyncTask<Result> task = new AsyncTask<>();
+        executor.execute(() -> {
+            try {
+                Result result = new Result();
+                loadManifest();
+                Set<String> present = new HashSet<>();
+                ConcurrentLinkedQueue<Path> changed = new ConcurrentLinkedQueue<>();
+                try (Stream<Path> walk = Files.walk(root)) {
+                    walk.filter(Files::isRegularFile).forEach(path -> {
+                        String relative = relative(path);
+                        present.add(relative);
+                        Entry entry = files.get(relative);
+                        try {
+                            if (entry != null && entry.fileId != null && entry.size == Files.size(path) && entry.modified == Files.getLastModifiedTime(path).toMillis())
+                                result.unchanged.incrementAndGet();
+                            else
+                                changed.add(path);
+                        } catch (IOException e) {
+                            result.failures.put(relative, e);
+                        }
+                    });
+                }
+                if (options.verifyRemote)
+                    verifyRemote(changed, result);
+
+                for (Path path : changed)
+                    folderOf(path);
+
+                List<String> removed = new ArrayList<>();
+                for (String relative : files.keySet()) {
+                    if (!present.contains(relative))
+                        removed.add(relative);
+                }
+
+                int workers = Math.max(1, Math.min(options.parallelism, changed.size()));
+                AtomicInteger running = new AtomicInteger(workers);
+                for (int i = 0; i < workers; i++) {
+                    executor.execute(() -> {
+                        Path path;
+                        while ((path = changed.poll()) != null)
+                            sync(path, result);
+                        if (running.decrementAndGet() == 0)
+                            finish(task, result, removed);
+                    });
+                }
+            } catch (Exception e) {
+                task.complete(null, e);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Fetches the checksum of every unchanged file from the drive and marks the ones which differ as changed.
+     */
+    private void verifyRemote(ConcurrentLinkedQueue<Path> changed, Result result) {
+        Map<String, String> paths = new LinkedHashMap<>();
+        Set<String> queued = new HashSet<>();
+        for (Path path : changed)
+            queued.add(relative(path));
+        for (Map.Entry<String, Entry> entry : files.entrySet()) {
+            if (entry.getValue().fileId != null && !queued.contains(entry.getKey()) && Files.isRegularFile(root.resolve(entry.getKey())))
+                paths.put(entry.getValue().fileId, entry.getKey());
+        }
+
+        BatchResult<File> remote = easyDrive.getMetadataNow(paths.keySet(), "id,md5Checksum,trashed");
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            Exception error = remote.failures.get(entry.getKey());
+            if (error != null && !isNotFound(error)) {
+                // the file could not be checked, it is kept in the manifest as it is for the next sync
+                result.failures.put(entry.getValue(), error);
+                result.unchanged.decrementAndGet();
+                continue;
+            }
+            File file = remote.successes.get(entry.getKey());
+            Entry local = files.get(entry.getValue());
+            boolean missing = file == null || Boolean.TRUE.equals(file.getTrashed());
+            if (missing || !local.md5.equals(file.getMd5Checksum())) {
+                // forget the checksum so that the file is uploaded again, to a new file if it is gone
+                files.put(entry.getValue(), new Entry(missing ? null : local.fileId, local.size, local.modified, ""));
+                changed.add(root.resolve(entry.getValue()));
+                result.unchanged.decrementAndGet();
+            }
+        }
+    }
+
+    private void sync(Path path, Result result) {
+        String relative = relative(path);
+        try {
+            long size = Files.size(path);
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            String md5 = Checksums.md5(path);
+            String parent = folderOf(path);
+            Entry entry = files.get(relative);
+            String fileId = entry == null ? null : entry.fileId;
+            if (entry != null && fileId != null && md5.equals(entry.md5)) {
+                files.put(relative, new Entry(fileId, size, modified, md5));
+                result.unchanged.incrementAndGet();
+                return;
+            }
+            if (fileId == null) {
+                File remote = easyDrive.findFile(path.getFileName().toString(), parent);
+                if (remote != null && md5.equals(remote.getMd5Checksum())) {
+                    files.put(relative, new Entry(remote.getId(), size, modified, md5));
+                    result.unchanged.incrementAndGet();
+                    return;
+                }
+                fileId = remote == null ? null : remote.getId();
+            }
+
+            String id = upload(path, parent, fileId);
+            files.put(relative, new Entry(id, size, modified, md5));
+            result.uploaded.add(relative);
+        } catch (Exception e) {
+            result.failures.put(relative, e);
+        }
+    }
+
+    /**
+     * Uploads the file, to a new file if the one in the manifest is gone, and to new folders if the ones in the
+     * manifest are gone.
+     */
+    private String upload(Path path, String parent, String fileId) throws IOException {
+        if (fileId != null) {
+            try {
+                return easyDrive.uploadFile(path.toFile(), parent, fileId);
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() != 404)
+                    throw e;
+            }
+        }
+        try {
+            return easyDrive.uploadFile(path.toFile(), parent, null);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 404 || parent.equals(folderId))
+                throw e;
+            forgetFolders(path);
+            return easyDrive.uploadFile(path.toFile(), folderOf(path), null);
+        }
+    }
+
+    private void finish(AsyncTask<Result> task, Result result, List<String> removed) {
+        try {
+            if (options.deleteRemote && !removed.isEmpty()) {
+                Map<String, String> ids = new LinkedHashMap<>();
+                for (String relative : removed) {
+                    Entry entry = files.get(relative);
+                    if (entry.fileId != null)
+                        ids.put(entry.fileId, relative);
+                }
+                BatchResult<Void> deleted = easyDrive.deleteNow(ids.keySet());
+                for (Map.Entry<String, String> id : ids.entrySet()) {
+                    Exception error = deleted.failures.get(id.getKey());
+                    if (error == null || isNotFound(error))
+                        result.deleted.add(id.getValue());
+                    else
+                        result.failures.put(id.getValue(), error);
+                }
+            }
+            for (String relative : removed) {
+                if (!result.failures.containsKey(relative))
+                    files.remove(relative);
+            }
+            saveManifest();
+            task.complete(result, null);
+        } catch (Exception e) {
+            task.complete(null, e);
+        }
+    }
+
+    /**
+     * @return The id of the drive folder of the file's directory, creating the missing folders.
+     */
+    private String folderOf(Path path) throws IOException {
+        Path directory = root.relativize(path).getParent();
+        if (directory == null)
+            return folderId;
+
+        String parent = folderId;
+        StringBuilder relative = new StringBuilder();
+        for (Path part : directory) {
+            if (relative.length() > 0)
+                relative.append('/');
+            relative.append(part);
+            String id = folders.get(relative.toString());
+            if (id == null) {
+                id = easyDrive.createFolderIfAbsent(part.toString(), parent);
+                folders.put(relative.toString(), id);
+            }
+            parent = id;
+        }
+        return parent;
+    }
+
+    /**
+     * Forgets the folders of the file's directory, one of which was deleted from the drive, so that they are looked
+     * up again by {@link #folderOf(Path)}.
+     */
+    private void forgetFolders(Path path) {
+        StringBuilder relative = new StringBuilder();
+        for (Path part : root.relativize(path).getParent()) {
+            if (relative.length() > 0)
+                relative.append('/');
+            relative.append(part);
+            String id = folders.remove(relative.toString());
+            if (id != null)
+                easyDrive.forget(id);
+        }
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) e).getStatusCode() == 404;
+    }
+
+    private String relative(Path path) {
+        return root.relativize(path).toString().replace(java.io.File.separatorChar, '/');
+    }
+
+    private void loadManifest() throws IOException {
+        if (!Files.exists(manifestFile))
+            return;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            properties.load(in);
+        }
+        if (!folderId.equals(properties.getProperty("folder")))
+            return;
+
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.startsWith("d/"))
+                folders.put(key.substring(2), value);
+            else if (key.startsWith("f/")) {
+                String[] parts = value.split(",", 4);
+                files.put(key.substring(2), new Entry(parts[0].isEmpty() ? null : parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+            }
+        }
+    }
+
+    private void saveManifest() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("folder", folderId);
+        folders.forEach((path, id) -> properties.setProperty("d/" + path, id));
+        files.forEach((path, entry) -> properties.setProperty("f/" + path,
+                (entry.fileId == null ? "" : entry.fileId) + "," + entry.size + "," + entry.modified + "," + entry.md5));
+
+        Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "EasyDrive sync manifest");
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Entry {
+        final String fileId;
+        final long size;
+        final long modified;
+        final String md5;
+
+        Entry(String fileId, long size, long modified, String md5) {
+            this.fileId = fileId;
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+    }
+
+    /**
+     * The options of a sync.
+     */
+    public static class Options {
+        boolean deleteRemote;
+        boolean verifyRemote;
+        int parallelism = 8;
+
+        /**
+         * @param deleteRemote true to delete the files from the drive which were deleted locally since the last sync.
+         */
+        public Options setDeleteRemote(boolean deleteRemote) {
+            this.deleteRemote = deleteRemote;
+            return this;
+        }
+
+        /**
+         * @param verifyRemote true to also check, in batches, that the unchanged files were not modified on the drive.
+         */
+        public Options setVerifyRemote(boolean verifyRemote) {
+            this.verifyRemote = verifyRemote;
+            return this;
+        }
+
+        /**
+         * @param parallelism The maximum number of files uploaded at the same time, 8 by default.
+         */
+        public Options setParallelism(int parallelism) {
+            if (parallelism < 1)
+                throw new IllegalArgumentException("parallelism must be positive");
+            this.parallelism = parallelism;
+            return this;
+        }
+    }
+
+    /**
+     * The outcome of a sync. Paths are relative to the synced directory, with '/' as separator.
+     */
+    public static class Result {
+        public final List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        public final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+        public final Map<String, Exception> failures = new ConcurrentHashMap<>();
+        public final AtomicLong unchanged = new AtomicLong();
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A read-only channel over the content of a file of the drive, for reading parts of a large file without
+ * downloading it, like the index of an archive or the footer of a Parquet file. See
+ * {@link EasyDrive#openChannel(String, Options)}.
+ * <p>
+ * The file is read by blocks, fetched with HTTP {@code Range} requests and kept in a fixed-size cache of the least
+ * recently used blocks, on or off the heap. A read fetches all the blocks it needs and does not have in a single
+ * request, along with the cached blocks lying in small gaps between them. When the file is read sequentially, the
+ * next blocks are fetched in background before they are read, ahead of a window which doubles with every fetch.
+ * Reading a few kilobytes anywhere in the file needs a single request of one block.
+ * <p>
+ * The channel is safe to use from multiple threads, but its reads are made one at a time.
+ */
+public class DriveChannel implements SeekableByteChannel {
+    private static final int READ_AHEAD_THREADS = 8;
+    private static volatile Executor readAheadExecutor;
+    private final Drive drive;
+    private final String fileId;
+    private final long size;
+    private final int blockSize;
+    private final long blockCount;
+    private final int maxBlocks;
+    private final int maxGapBlocks;
+    private final int maxReadAheadBlocks;
+    private final boolean offHeap;
+    // the cached blocks, the blocks being fetched and the buffers of the evicted blocks, guarded by blocks
+    private final LinkedHashMap<Long, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, CompletableFuture<Void>> loading = new HashMap<>();
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private volatile boolean open = true;
+    private long position;
+    private long lastEnd;
+    private int readAhead;
+    private long readAheadUntil;
+
+    DriveChannel(Drive drive, String fileId, long size, Options options) {
+        this.drive = drive;
+        this.fileId = fileId;
+        this.size = size;
+        this.blockSize = options.blockSize;
+        this.blockCount = (size + blockSize - 1) / blockSize;
+        this.maxBlocks = (int) Math.max(4, Math.min(Integer.MAX_VALUE, options.cacheSize / blockSize));
+        this.maxGapBlocks = options.mergeGap / blockSize;
+        // the blocks read ahead must not evict the ones being read
+        this.maxReadAheadBlocks = Math.min(maxBlocks / 4, options.maxReadAhead / blockSize);
+        this.offHeap = options.offHeap;
+    }
+
+    /**
+     * @return The id of the file
+     */
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return The number of blocks read from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of blocks which had to be fetched, or to wait for their fetch
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of requests made to fetch the blocks, including the ones read ahead
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+
+        boolean sequential = position == lastEnd;
+        long end = Math.min(size, position + dst.remaining());
+        int read = 0;
+        boolean fetched = false;
+        while (position < end) {
+            long block = position / blockSize;
+            int count = copy(block, dst, end);
+            if (count < 0) {
+                if (!fetched)
+                    misses.increment();
+                fetched = true;
+                load(block, (end - 1) / blockSize);
+                continue;
+            }
+            if (!fetched)
+                hits.increment();
+            fetched = false;
+            position += count;
+            read += count;
+        }
+        lastEnd = position;
+        readAhead(sequential);
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized DriveChannel position(long newPosition) throws IOException {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("The position must not be negative");
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel and drops its cache. The blocks being read ahead are dropped when they arrive.
+     */
+    @Override
+    public void close() {
+        open = false;
+        synchronized (blocks) {
+            blocks.clear();
+            free.clear();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    /**
+     * Copies the cached part of the block from the position, up to the end.
+     *
+     * @return The number of bytes copied, -1 if the block is not cached.
+     */
+    private int copy(long block, ByteBuffer dst, long end) {
+        synchronized (blocks) {
+            ByteBuffer buffer = blocks.get(block);
+            if (buffer == null)
+                return -1;
+            int offset = (int) (position - block * blockSize);
+            int count = (int) Math.min(Math.min(dst.remaining(), buffer.limit() - offset), end - position);
+            ByteBuffer part = buffer.duplicate();
+            part.position(offset).limit(offset + count);
+            dst.put(part);
+            return count;
+        }
+    }
+
+    /**
+     * Fetches the block, with the next blocks up to {@code last} which are missing, or waits for the fetch of the
+     * block already running. This method blocks.
+     */
+    private void load(long first, long last) throws IOException {
+        CompletableFuture<Void> running;
+        CompletableFuture<Void> fetch = new CompletableFuture<>();
+        long end = first;
+        synchronized (blocks) {
+            running = loading.get(first);
+            if (running == null) {
+                if (blocks.containsKey(first))
+                    return;
+                // fetching a few cached blocks again costs less than another round-trip
+                int gap = 0;
+                for (long block = first + 1; block <= last && block - first < maxBlocks / 2; block++) {
+                    if (loading.containsKey(block))
+                        break;
+                    if (!blocks.containsKey(block)) {
+                        end = block;
+                        gap = 0;
+                    } else if (++gap > maxGapBlocks) {
+                        break;
+                    }
+                }
+                for (long block = first; block <= end; block++)
+                    loading.put(block, fetch);
+            }
+        }
+
+        if (running == null) {
+            fetch(first, end, fetch);
+            return;
+        }
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block of " + fileId);
+        } catch (ExecutionException e) {
+            // the block was read ahead and failed, the read fetches it again itself
+        }
+    }
+
+    /**
+     * Fetches the blocks from {@code first} to {@code last} with a single request and caches them.
+     */
+    private void fetch(long first, long last, CompletableFuture<Void> done) throws IOException {
+        long start = first * blockSize;
+        long end = Math.min(size, (last + 1) * blockSize) - 1;
+        try {
+            requests.increment();
+            Drive.Files.Get request = drive.files().get(fileId);
+            request.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+            HttpResponse response = request.executeMedia();
+            try {
+                if (response.getStatusCode() != 206 && start > 0)
+                    throw new IOException("The range of " + fileId + " was not honoured, status " + response.getStatusCode());
+                InputStream in = response.getContent();
+                ReadableByteChannel source = Channels.newChannel(in);
+                for (long block = first; block <= last; block++) {
+                    ByteBuffer buffer = allocate();
+                    buffer.limit((int) Math.min(blockSize, size - block * blockSize));
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0)
+                            throw new IOException("Range of " + fileId + " ended early at block " + block);
+                    }
+                    buffer.flip();
+                    put(block, buffer);
+                }
+                // reaching the end lets the connection be reused
+                if (response.getStatusCode() == 206)
+                    in.read();
+            } finally {
+                response.disconnect();
+            }
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (blocks) {
+                for (long block = first; block <= last; block++)
+                    loading.remove(block, done);
+            }
+        }
+    }
+
+    /**
+     * Fetches the next blocks in background if the file is read sequentially. The window grows each time the reads
+     * reach the second half of the blocks already requested, so that a single request is made for more and more
+     * blocks, up to {@link Options#setMaxReadAhead(int)}.
+     */
+    private void readAhead(boolean sequential) {
+        if (!sequential) {
+            readAhead = 0;
+            readAheadUntil = 0;
+            return;
+        }
+        long current = position / blockSize;
+        if (maxReadAheadBlocks == 0 || current >= blockCount || readAheadUntil - current > readAhead / 2)
+            return;
+        readAhead = Math.min(maxReadAheadBlocks, Math.max(1, readAhead * 2));
+        long from = Math.max(current, readAheadUntil);
+        long to = Math.min(blockCount, current + readAhead + 1);
+        readAheadUntil = to;
+
+        long first = -1;
+        long last = -1;
+        CompletableFuture<Void> fetch = new CompletableFuture<>();
+        synchronized (blocks) {
+            for (long block = from; block < to; block++) {
+                boolean missing = !blocks.containsKey(block) && !loading.containsKey(block);
+                if (missing && first < 0)
+                    first = block;
+                if (missing)
+                    last = block;
+                else if (first >= 0)
+                    break;
+            }
+            for (long block = first; first >= 0 && block <= last; block++)
+                loading.put(block, fetch);
+        }
+        if (first < 0)
+            return;
+
+        long start = first;
+        long end = last;
+        try {
+            readAheadExecutor().execute(() -> {
+                try {
+                    fetch(start, end, fetch);
+                } catch (IOException | RuntimeException ignored) {
+                    // the blocks are fetched again when read
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // all the threads are reading ahead already, the blocks are fetched when read instead
+            readAheadUntil = current;
+            synchronized (blocks) {
+                for (long block = start; block <= end; block++)
+                    loading.remove(block, fetch);
+            }
+            fetch.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return The threads reading ahead for all the channels, created at the first call. A read ahead is dropped
+     * when they are all busy, rather than queued or run by the thread of the read, which would wait for it.
+     */
+    private static Executor readAheadExecutor() {
+        Executor executor = readAheadExecutor;
+        if (executor == null) {
+            synchronized (DriveChannel.class) {
+                executor = readAheadExecutor;
+                if (executor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(0, READ_AHEAD_THREADS, 2, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "EasyDrive-read-ahead-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+                    readAheadExecutor = executor = RequestScheduler.withPriority(RequestScheduler.Priority.BULK, pool);
+                }
+            }
+        }
+        return executor;
+    }
+
+    private ByteBuffer allocate() {
+        synchronized (blocks) {
+            ByteBuffer buffer = free.poll();
+            if (buffer != null)
+                return buffer.clear();
+        }
+        return offHeap ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer.allocate(blockSize);
+    }
+
+    /**
+     * Caches the block, evicting the least recently used ones beyond the size of the cache. Their buffers are kept
+     * to be reused by the next blocks fetched.
+     */
+    private void put(long block, ByteBuffer buffer) {
+        synchronized (blocks) {
+            if (!open)
+                return;
+            ByteBuffer previous = blocks.put(block, buffer);
+            if (previous != null)
+                recycle(previous);
+            Iterator<ByteBuffer> iterator = blocks.values().iterator();
+            while (blocks.size() > maxBlocks && iterator.hasNext()) {
+                ByteBuffer evicted = iterator.next();
+                iterator.remove();
+                recycle(evicted);
+            }
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (free.size() < 4)
+            free.offer(buffer);
+    }
+
+    /**
+     * The options of a {@link DriveChannel}
+     */
+    public static class Options {
+        int blockSize = 64 * 1024;
+        long cacheSize = 16 * 1024 * 1024;
+        int maxReadAhead = 4 * 1024 * 1024;
+        int mergeGap = 256 * 1024;
+        boolean offHeap;
+
+        /**
+         * @param blockSize The size of the blocks fetched and cached in bytes, 64 KB by default. A read of a few
+         *                  bytes fetches a whole block.
+         */
+        public Options setBlockSize(int blockSize) {
+            if (blockSize < 1)
+                throw new IllegalArgumentException("blockSize must be positive");
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * @param cacheSize The maximum size of the cached blocks in bytes, 16 MB by default. At least 4 blocks are
+         *                  cached.
+         */
+        public Options setCacheSize(long cacheSize) {
+            if (cacheSize < 0)
+                throw new IllegalArgumentException("cacheSize must not be negative");
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * @param maxReadAhead The maximum number of bytes fetched ahead of a sequential read, 4 MB by default, 0 to
+         *                     not read ahead. At-most a quarter of the cache is read ahead.
+         */
+        public Options setMaxReadAhead(int maxReadAhead) {
+            if (maxReadAhead < 0)
+                throw new IllegalArgumentException("maxReadAhead must not be negative");
+            this.maxReadAhead = maxReadAhead;
+            return this;
+        }
+
+        /**
+         * @param mergeGap The maximum size of cached blocks fetched again to fetch the missing blocks around them
+         *                 with a single request, 256 KB by default.
+         */
+        public Options setMergeGap(int mergeGap) {
+            if (mergeGap < 0)
+                throw new IllegalArgumentException("mergeGap must not be negative");
+            this.mergeGap = mergeGap;
+            return this;
+        }
+
+        /**
+         * @param offHeap true to cache the blocks in direct buffers, outside of the heap.
+         */
+        public Options setOffHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+    }
+}
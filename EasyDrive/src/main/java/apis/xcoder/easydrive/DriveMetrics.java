@@ -0,0 +1,62 @@
+package apis.xcoder.easydrive;
+
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the measurements of an {@link EasyDrive} instance, see {@link EasyDrive#setMetrics(DriveMetrics)}.
+ * {@link DefaultMetrics} keeps them in memory, implement this interface to send them to your own monitoring
+ * system instead.
+ * <p>
+ * The methods are called from many threads at the same time, on the path of every request, so they must be
+ * thread-safe and fast.
+ */
+public interface DriveMetrics {
+
+    /**
+     * Records an operation of EasyDrive, like "uploadFile" or "getName", from the call of the method to the
+     * completion of its task. This includes the time spent waiting for a thread and all the requests it made.
+     *
+     * @param operation  The name of the method
+     * @param nanos      The duration in nanoseconds
+     * @param successful false if the task failed
+     */
+    void recordOperation(@Nonnull String operation, long nanos, boolean successful);
+
+    /**
+     * Records an HTTP request, every attempt of a request is recorded.
+     *
+     * @param type       The type of the request, like "files.list", "files.get", "media.download", "upload" or "batch"
+     * @param statusCode The status code of the response, -1 if no response was received
+     * @param nanos      The time from sending the request to receiving the response headers, in nanoseconds
+     */
+    void recordRequest(@Nonnull String type, int statusCode, long nanos);
+
+    /**
+     * Records a request about to be sent again after it failed.
+     *
+     * @param type       The type of the request, like {@link #recordRequest(String, int, long)}.
+     * @param statusCode The status code which caused the retry
+     */
+    void recordRetry(@Nonnull String type, int statusCode);
+
+    /**
+     * Records bytes sent in request bodies. Called many times during a request.
+     */
+    void recordBytesSent(long bytes);
+
+    /**
+     * Records bytes received in response bodies, as announced by the headers of every response which has a length.
+     */
+    void recordBytesReceived(long bytes);
+
+    /**
+     * Registers a value which is read when needed, like the number of requests in flight.
+     *
+     * @param name  The name of the value
+     * @param gauge The function which returns the current value
+     */
+    default void registerGauge(@Nonnull String name, @Nonnull LongSupplier gauge) {
+    }
+}
@@ -0,0 +1,248 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.SslUtils;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLContext;
+
+/**
+ * The HTTP transport of {@link EasyDrive}, which can be shared by many instances. It keeps a pool of connections,
+ * reused by all the requests while they are kept alive, with a limit per host and in total. The trust store and the
+ * TLS context are loaded once, at the first connection, and shared by all the transports, so that the TLS sessions
+ * are resumed instead of negotiated again when a new connection is opened.
+ * <p>
+ * Creating a transport is cheap, its pool is created with the first instance which uses it, and nothing is loaded or
+ * connected until the first request. The instances created with the same credentials on the same transport also
+ * share the same access token, which is fetched at their first request. The pool is configured before the first
+ * instance is created on the transport, the timeouts can be changed at any time.
+ */
+public class DriveTransport {
+    private static volatile SSLContext sslContext;
+    private static volatile DriveTransport defaultTransport;
+    private final Map<List<String>, Credential> credentials = new ConcurrentHashMap<>();
+    private volatile HttpTransport transport;
+    private volatile int maxConnections = 200;
+    private volatile int maxConnectionsPerRoute = 64;
+    private volatile long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+    private volatile int connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(20);
+    private volatile int readTimeoutMillis = (int) TimeUnit.MINUTES.toMillis(10);
+    private volatile int writeTimeoutMillis = (int) TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Creates a transport with at-most 200 connections, 64 to the same host.
+     */
+    public DriveTransport() {
+    }
+
+    /**
+     * Sends the requests through the given transport instead of a pool of its own, only the timeouts apply.
+     */
+    DriveTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return The transport used by the instances created without one, created at the first call. It is shared by the
+     * whole process and cannot be shut down.
+     */
+    public static DriveTransport getDefault() {
+        DriveTransport transport = defaultTransport;
+        if (transport == null) {
+            synchronized (DriveTransport.class) {
+                transport = defaultTransport;
+                if (transport == null)
+                    defaultTransport = transport = new DriveTransport();
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Sets the size of the pool. Requests beyond these limits wait for a connection to be released.
+     *
+     * @param total    The maximum number of connections, 200 by default.
+     * @param perRoute The maximum number of connections to the same host, 64 by default. Keep it at least as high as
+     *                 {@link RequestScheduler#setConcurrencyLimits(int, int)} of the instances sharing the transport.
+     * @throws IllegalStateException if an instance was already created on this transport
+     */
+    public synchronized void setMaxConnections(int total, int perRoute) {
+        if (total < 1 || perRoute < 1 || perRoute > total)
+            throw new IllegalArgumentException("Invalid connection limits");
+        checkNotStarted();
+        this.maxConnections = total;
+        this.maxConnectionsPerRoute = perRoute;
+    }
+
+    /**
+     * Sets for how long an unused connection is kept open to be reused.
+     *
+     * @param timeout The timeout, 60 seconds by default.
+     * @param unit    The unit of {@code timeout}
+     * @throws IllegalStateException if an instance was already created on this transport
+     */
+    public synchronized void setIdleTimeout(long timeout, @Nonnull TimeUnit unit) {
+        if (timeout < 1)
+            throw new IllegalArgumentException("timeout must be positive");
+        checkNotStarted();
+        this.idleTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the timeouts of the requests, applied to the requests sent from now on.
+     *
+     * @param connect The timeout to open a connection, 20 seconds by default, 0 for none.
+     * @param read    The timeout to wait for data from the server, 10 minutes by default, 0 for none.
+     * @param write   The timeout to send data to the server, 10 minutes by default, 0 for none.
+     * @param unit    The unit of the timeouts
+     */
+    public void setTimeouts(long connect, long read, long write, @Nonnull TimeUnit unit) {
+        if (connect < 0 || read < 0 || write < 0)
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(connect));
+        this.readTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(read));
+        this.writeTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(write));
+    }
+
+    int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * @return The credential of the account, shared by all the instances created with it on this transport so that
+     * they refresh the same access token, once.
+     */
+    Credential credential(String clientId, String clientSecret, String refreshToken) {
+        return credentials.computeIfAbsent(List.of(clientId, clientSecret, refreshToken), key -> new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+                .setTokenServerUrl(new GenericUrl(GoogleOAuthConstants.TOKEN_SERVER_URL))
+                .setClientAuthentication(new ClientParametersAuthentication(clientId, clientSecret))
+                .setJsonFactory(GsonFactory.getDefaultInstance())
+                .setTransport(transport())
+                .build()
+                .setRefreshToken(refreshToken));
+    }
+
+    /**
+     * Closes the connections of the pool. The transport cannot be used anymore.
+     *
+     * @throws IllegalStateException if this is the {@link #getDefault() default transport}, which other instances may
+     *                               be using.
+     */
+    public void shutdown() throws IOException {
+        if (this == defaultTransport)
+            throw new IllegalStateException("The default transport is shared and cannot be shut down");
+        HttpTransport transport = this.transport;
+        if (transport != null)
+            transport.shutdown();
+    }
+
+    private void checkNotStarted() {
+        if (transport != null)
+            throw new IllegalStateException("The transport is already in use");
+    }
+
+    /**
+     * @return The transport through which the requests are sent, the pool is created at the first call.
+     */
+    HttpTransport transport() {
+        HttpTransport transport = this.transport;
+        if (transport == null) {
+            synchronized (this) {
+                transport = this.transport;
+                if (transport == null)
+                    this.transport = transport = createPool();
+            }
+        }
+        return transport;
+    }
+
+    private HttpTransport createPool() {
+        return new ApacheHttpTransport(ApacheHttpTransport.newDefaultHttpClientBuilder()
+                .setSSLSocketFactory(new LazySocketFactory())
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .evictIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build());
+    }
+
+    /**
+     * @return The TLS context trusting the Google certificates, loaded at the first call. Its session cache is
+     * shared by all the connections of all the transports.
+     */
+    private static SSLContext sslContext() throws IOException {
+        SSLContext context = sslContext;
+        if (context == null) {
+            synchronized (DriveTransport.class) {
+                context = sslContext;
+                if (context == null) {
+                    try {
+                        context = SslUtils.initSslContext(SslUtils.getTlsSslContext(), GoogleUtils.getCertificateTrustStore(), SslUtils.getPkixTrustManagerFactory());
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException("Cannot load the trust store", e);
+                    }
+                    sslContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Opens the TLS connections with the shared context, loaded at the first connection rather than with the pool.
+     */
+    private static final class LazySocketFactory implements LayeredConnectionSocketFactory {
+        private volatile SSLConnectionSocketFactory factory;
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return factory().createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            return factory().connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            return factory().createLayeredSocket(socket, target, port, context);
+        }
+
+        private SSLConnectionSocketFactory factory() throws IOException {
+            SSLConnectionSocketFactory factory = this.factory;
+            if (factory == null)
+                this.factory = factory = new SSLConnectionSocketFactory(sslContext());
+            return factory;
+        }
+    }
+}
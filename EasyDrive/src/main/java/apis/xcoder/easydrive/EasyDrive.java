@@ -1,70 +1,381 @@
 package apis.xcoder.easydrive;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
-import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /**
  * EasyDrive is a wrapper for the Google Drive API. It provides convenience methods for accessing the API.
+ * <p>
+ * An instance keeps no state of its own between calls besides its settings and caches, so it is safe to share
+ * between threads. To go beyond the quota of a single account, see {@link ShardedEasyDrive}.
  *
  * @author Rahil khan
  * @version 1.0
  */
 public class EasyDrive {
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int MAX_BATCH_ATTEMPTS = 5;
+    private static final String DEFAULT_LIST_FIELDS = "id,name,mimeType,size";
     public final Drive drive;
-    private String fileId;
+    private final RequestScheduler scheduler;
+    private volatile TaskExecutor executor;
+    private volatile FileIdCache idCache;
+    private volatile MetadataIndex metadataIndex;
+    private volatile int maxConcurrentBatches = 4;
+    private volatile int maxConcurrentListings = 8;
+    private volatile int maxConcurrentUploads = 8;
+    private volatile int uploadChunkSize;
+    private volatile java.io.File uploadSessionDirectory;
+    private volatile DriveMetrics metrics;
+    private volatile BufferPool bufferPool;
+    private volatile ContentCache contentCache;
+    private final LongAdder operationsInFlight = new LongAdder();
+    private final SingleFlight<List<String>, File> lookups;
+    private final SingleFlight<List<String>, String> folderCreations;
+    private final SingleFlight<String, String> names;
 
     /**
-     * Initialize the API client and construct the Drive service. This do not blocks the thread.
+     * Initialize the API client and construct the Drive service on the shared {@link DriveTransport#getDefault()}.
+     * This do not blocks the thread, the credentials are checked at the first request.
+     * <p>
+     * The checked exceptions are never thrown anymore. They are only still declared so that the existing code which
+     * catches them keeps compiling.
      *
      * @param clientId     Your clientID for the API
      * @param clientSecret Your clientSecret for the API
      * @param refreshToken Your refreshToken of the API authentication
-     * @throws GeneralSecurityException if any of the credential is invalid or the server cannot authenticate.
-     * @throws IOException              if the server cannot be reached or an networking exception occurred.
+     * @throws GeneralSecurityException never, the trust store is loaded at the first request.
+     * @throws IOException              never, the server is reached at the first request.
      */
     public EasyDrive(@Nonnull String clientId, @Nonnull String clientSecret, @Nonnull String refreshToken) throws GeneralSecurityException, IOException {
-        NetHttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
-        GsonFactory factory = GsonFactory.getDefaultInstance();
-        Credential credential = new GoogleCredential.Builder()
-                .setClientSecrets(clientId, clientSecret)
-                .setJsonFactory(factory)
-                .setTransport(transport)
-                .build()
-                .setRefreshToken(refreshToken);
-        
+        this(DriveTransport.getDefault(), clientId, clientSecret, refreshToken);
+    }
+
+    /**
+     * Initialize the API client and construct the Drive service on the given transport, which can be shared by
+     * many instances. The instances created with the same credentials on the same transport share their access
+     * token. This do not blocks the thread, the credentials are checked at the first request.
+     *
+     * @param transport    The transport to send the requests through
+     * @param clientId     Your clientID for the API
+     * @param clientSecret Your clientSecret for the API
+     * @param refreshToken Your refreshToken of the API authentication
+     */
+    public EasyDrive(@Nonnull DriveTransport transport, @Nonnull String clientId, @Nonnull String clientSecret, @Nonnull String refreshToken) {
+        this(transport, transport.credential(clientId, clientSecret, refreshToken), null);
+    }
+
+    /**
+     * Constructs the Drive service on the given transport, with the default timeouts.
+     *
+     * @param credential The credential which authorizes the requests, null to send them as is.
+     * @param rootUrl    The root url of the API, like "http://localhost:8080/", null for the Google one.
+     */
+    EasyDrive(HttpTransport transport, @Nullable HttpRequestInitializer credential, @Nullable String rootUrl) {
+        this(new DriveTransport(transport), credential, rootUrl);
+    }
+
+    private EasyDrive(DriveTransport transport, @Nullable HttpRequestInitializer credential, @Nullable String rootUrl) {
+        scheduler = new RequestScheduler();
+        lookups = new SingleFlight<>();
+        folderCreations = new SingleFlight<>();
+        names = new SingleFlight<>();
         HttpRequestInitializer initializer = new HttpRequestInitializer() {
             @Override
             public void initialize(HttpRequest request) throws IOException {
-                credential.initialize(request);
-                request.setWriteTimeout(10*60*1000);
-                request.setReadTimeout(10*60000);
+                if (credential != null)
+                    credential.initialize(request);
+                scheduler.initialize(request);
+                request.setConnectTimeout(transport.getConnectTimeoutMillis());
+                request.setReadTimeout(transport.getReadTimeoutMillis());
+                request.setWriteTimeout(transport.getWriteTimeoutMillis());
             }
         };
-        drive = new Drive.Builder(transport, factory, initializer).setApplicationName("EasyDrive").build();
+        Drive.Builder builder = new Drive.Builder(transport.transport(), GsonFactory.getDefaultInstance(), initializer).setApplicationName("EasyDrive");
+        if (rootUrl != null)
+            builder.setRootUrl(rootUrl);
+        drive = builder.build();
+    }
+
+    /**
+     * Shares the Drive service and the scheduler of another instance, for {@link ShardedEasyDrive}. Its other
+     * settings are not copied.
+     *
+     * @param coalescing The instance whose concurrent lookups and folder creations coalesce with those of this one,
+     *                   as if they were made by the same instance. Null to coalesce them only within this instance.
+     */
+    EasyDrive(EasyDrive other, @Nullable EasyDrive coalescing) {
+        drive = other.drive;
+        scheduler = other.scheduler;
+        lookups = coalescing == null ? new SingleFlight<>() : coalescing.lookups;
+        folderCreations = coalescing == null ? new SingleFlight<>() : coalescing.folderCreations;
+        names = coalescing == null ? new SingleFlight<>() : coalescing.names;
+    }
+
+    /**
+     * @return The scheduler through which all the requests of this instance are sent, to tune its rate limit and
+     * concurrency or to monitor it.
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets where the measurements of this instance are recorded: the latency of every operation and of every HTTP
+     * request, the status codes, the retries and the bytes transferred. The number of requests in flight and
+     * waiting, the concurrency limit of the scheduler and the state of the executor are registered as gauges.
+     *
+     * @param metrics The metrics to record to, like a {@link DefaultMetrics}, null to not record any (the default).
+     */
+    public void setMetrics(@Nullable DriveMetrics metrics) {
+        if (metrics != null) {
+            metrics.registerGauge("requests.inFlight", scheduler::getInFlightCount);
+            metrics.registerGauge("requests.waiting", scheduler::getWaitingCount);
+            metrics.registerGauge("requests.concurrencyLimit", scheduler::getConcurrencyLimit);
+            metrics.registerGauge("tasks.queued", () -> getExecutor().getQueuedCount());
+            metrics.registerGauge("tasks.active", () -> getExecutor().getActiveCount());
+            metrics.registerGauge("operations.inFlight", this::getOperationsInFlight);
+            metrics.registerGauge("requests.coalesced", () -> lookups.getSharedCount() + folderCreations.getSharedCount() + names.getSharedCount());
+        }
+        this.metrics = metrics;
+        scheduler.setMetrics(metrics);
+    }
+
+    /**
+     * @return Where the measurements of this instance are recorded, null if they are not.
+     */
+    @Nullable
+    public DriveMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The number of operations tracked by the metrics and not finished yet
+     */
+    long getOperationsInFlight() {
+        return operationsInFlight.sum();
+    }
+
+    /**
+     * Sets the executor on which the tasks of this instance are run. By default, the tasks are run on
+     * {@link AsyncTask#getDefaultExecutor()}. Pass {@link TaskExecutor#virtual()} to use virtual threads.
+     *
+     * @param executor The executor to use, null to use the default one.
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor == null ? null : TaskExecutor.wrap(executor);
+    }
+
+    /**
+     * @return The executor on which the tasks of this instance are run.
+     */
+    public TaskExecutor getExecutor() {
+        TaskExecutor executor = this.executor;
+        return executor == null ? AsyncTask.getDefaultExecutor() : executor;
+    }
+
+    /**
+     * Sets the pool of buffers through which the contents of files are read, see
+     * {@link #readContent(String, ContentCallback, ProgressListener)}.
+     *
+     * @param pool The pool to use, null to use {@link BufferPool#getDefault()}.
+     */
+    public void setBufferPool(@Nullable BufferPool pool) {
+        this.bufferPool = pool;
+    }
+
+    /**
+     * @return The pool of buffers through which the contents of files are read.
+     */
+    public BufferPool getBufferPool() {
+        BufferPool pool = this.bufferPool;
+        return pool == null ? BufferPool.getDefault() : pool;
+    }
+
+    /**
+     * Sets the local cache of the contents of the files. When set, {@link #getContent(String)},
+     * {@link #getAsInputStream(String)}, {@link #readContent(String, ContentCallback, ProgressListener)} and
+     * {@link #download(String, String, ProgressListener)} read the files from it, and download them only if they
+     * are not cached or have changed.
+     *
+     * @param cache The cache to use, null to not cache the contents (the default).
+     */
+    public void setContentCache(@Nullable ContentCache cache) {
+        this.contentCache = cache;
+    }
+
+    /**
+     * @return The local cache of the contents of the files, null if there is none.
+     */
+    @Nullable
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Sets the cache used to resolve file names to ids. When set, {@link #getFileId(String, String)} and every
+     * method that looks up a file by its name answers from the cache when possible. The files created, updated or
+     * deleted using this instance keeps the cache up-to-date.
+     *
+     * @param cache The cache to use, null to disable caching (the default).
+     */
+    public void setFileIdCache(@Nullable FileIdCache cache) {
+        this.idCache = cache;
+    }
+
+    /**
+     * @return The cache used to resolve file names to ids, null if caching is disabled.
+     */
+    @Nullable
+    public FileIdCache getFileIdCache() {
+        return idCache;
+    }
+
+    /**
+     * Sets the local index from which the metadata lookups are answered, instead of the network. The lookups by id
+     * or name ({@link #getFileId(String, String)}, {@link #getName(String)}, {@link #listFiles(String)} and
+     * {@link #getFileSize(String)}) use it once it is built or loaded. Names not found in the index are still
+     * searched on the drive.
+     *
+     * @param index The index to use, null to not use any (the default).
+     */
+    public void setMetadataIndex(@Nullable MetadataIndex index) {
+        this.metadataIndex = index;
+    }
+
+    /**
+     * Fills the id cache with every file and folder under the given folder, so that later lookups in this folder
+     * and its sub-folders do not need any request. Each folder is listed once, page by page.
+     *
+     * @param folderId The folder to prewarm, null for root.
+     * @return Call with the number of entries cached
+     * @throws IllegalStateException if no cache is set using {@link #setFileIdCache(FileIdCache)}
+     */
+    public AsyncTask<Integer> prewarmFileIdCache(@Nullable String folderId) {
+        FileIdCache cache = idCache;
+        if (cache == null)
+            throw new IllegalStateException("No FileIdCache is set");
+
+        return track("prewarmFileIdCache", callAsync(() -> {
+            int count = 0;
+            Deque<String> folders = new ArrayDeque<>();
+            folders.add(folderId == null ? "root" : folderId);
+            while (!folders.isEmpty()) {
+                String parent = folders.poll();
+                String pageToken = null;
+                do {
+                    FileList list = drive.files().list()
+                            .setQ("'" + parent + "' in parents and trashed = false")
+                            .setFields("nextPageToken,files(id,name,mimeType)")
+                            .setPageSize(1000)
+                            .setPageToken(pageToken)
+                            .execute();
+                    for (File file : list.getFiles()) {
+                        cache.put(parent, file.getName(), file.getId());
+                        count++;
+                        if ("application/vnd.google-apps.folder".equals(file.getMimeType()))
+                            folders.add(file.getId());
+                    }
+                    pageToken = list.getNextPageToken();
+                } while (pageToken != null);
+            }
+            return count;
+        }));
+    }
+
+    /**
+     * Sets the maximum number of batch requests sent at the same time by a single bulk operation
+     * (like {@link #delete(Collection)}).
+     *
+     * @param maxConcurrentBatches The maximum number of concurrent batches, 4 by default.
+     */
+    public void setMaxConcurrentBatches(int maxConcurrentBatches) {
+        if (maxConcurrentBatches < 1)
+            throw new IllegalArgumentException("maxConcurrentBatches must be positive");
+        this.maxConcurrentBatches = maxConcurrentBatches;
+    }
+
+    private <T> AsyncTask<T> callAsync(Callable<T> callable) {
+        return AsyncTask.callAsync(callable, getExecutor());
+    }
+
+    private <T> AsyncTask<T> callAsync(RequestScheduler.Priority priority, Callable<T> callable) {
+        return AsyncTask.callAsync(callable, getExecutor(priority));
+    }
+
+    private Executor getExecutor(RequestScheduler.Priority priority) {
+        return RequestScheduler.withPriority(priority, getExecutor());
+    }
+
+    /**
+     * Records the duration of the task as the given operation, from now to its completion.
+     */
+    private <T> AsyncTask<T> track(String operation, AsyncTask<T> task) {
+        DriveMetrics metrics = this.metrics;
+        if (metrics == null)
+            return task;
+        long start = System.nanoTime();
+        operationsInFlight.increment();
+        task.whenComplete((value, error) -> {
+            operationsInFlight.decrement();
+            metrics.recordOperation(operation, System.nanoTime() - start, error == null);
+        });
+        return task;
     }
 
     /**
@@ -74,65 +385,209 @@ public class EasyDrive {
      * @param folderId The folder to upload the file to, null for root.
      */
     public AsyncTask<String> uploadFile(@Nonnull java.io.File file, @Nullable String folderId) {
-        return AsyncTask.callAsync(() -> {
-            fileId = AsyncTask.await(getFileId(file.getName(), folderId), 5);
-            String mime = file.toURL().openConnection().getContentType();
-            File body = new File().setName(file.getName()).setMimeType(mime);
-            AbstractGoogleClientRequest<File> request;
-            if (fileId == null) {
-                body.setParents(Collections.singletonList(folderId == null ? "root" : folderId));
-                request = drive.files().create(body, new FileContent(mime, file));
-            } else {
-                request = drive.files().update(fileId, body, new FileContent(mime, file));
-            }
-            return request.execute().getId();
-        });
+        return track("uploadFile", getFileId(file.getName(), folderId).flatMap(id -> callAsync(RequestScheduler.Priority.BULK, () -> uploadFile(file, folderId, id))));
+    }
+
+    /**
+     * Uploads the file on the calling thread.
+     *
+     * @param fileId The id of the file to update, null to create a new one.
+     * @return The id of the uploaded file
+     */
+    String uploadFile(java.io.File file, String folderId, String fileId) throws IOException {
+        String mime = mimeTypeOf(file);
+        File body = new File().setName(file.getName()).setMimeType(mime);
+        AbstractGoogleClientRequest<File> request;
+        if (fileId == null) {
+            body.setParents(Collections.singletonList(folderId == null ? "root" : folderId));
+            request = drive.files().create(body, new FileContent(mime, file));
+        } else {
+            request = drive.files().update(fileId, body, new FileContent(mime, file));
+            changed(fileId);
+        }
+        return cacheUpload(file.getName(), folderId, request.set("fields", MetadataIndex.FIELDS).execute());
+    }
+
+    /**
+     * Same as {@link #uploadFile(java.io.File, String)}, but the upload is skipped if the file on the drive already
+     * has the same content. The MD5 of the file is computed while the file is looked up on the drive, and compared
+     * with the {@code md5Checksum} returned by the lookup.
+     *
+     * @param file     The file to upload
+     * @param folderId The folder to upload the file to, null for root.
+     * @return Call with the id of the file and whether it was uploaded
+     */
+    public AsyncTask<UploadResult> uploadFileIfChanged(@Nonnull java.io.File file, @Nullable String folderId) {
+        AsyncTask<String> checksum = callAsync(() -> Checksums.md5(file.toPath()));
+        return track("uploadFileIfChanged", callAsync(RequestScheduler.Priority.INTERACTIVE, () -> Optional.ofNullable(findFile(file.getName(), folderId)))
+                .flatMap(remote -> checksum.flatMap(md5 -> {
+                    if (remote.isPresent() && md5.equals(remote.get().getMd5Checksum()))
+                        return AsyncTask.completed(new UploadResult(remote.get().getId(), md5, false));
+                    String id = remote.map(File::getId).orElse(null);
+                    return callAsync(RequestScheduler.Priority.BULK, () -> new UploadResult(uploadFile(file, folderId, id), md5, true));
+                })));
     }
 
     /**
-     * Uploads a file as input-stream to the Google Drive or updates it if already exist.
+     * Uploads many files to the same folder, skipping the ones the drive already has with the same content. The
+     * files are hashed in parallel on all the cores while the folder is listed once, then the files which changed
+     * are uploaded, at-most {@link #setMaxConcurrentUploads(int)} at a time.
+     *
+     * @param files    The files to upload, with distinct names
+     * @param folderId The folder to upload the files to, null for root.
+     * @return Call with the result of every file, keyed by its path
+     */
+    public AsyncTask<BatchResult<UploadResult>> uploadFilesIfChanged(@Nonnull Collection<java.io.File> files, @Nullable String folderId) {
+        return track("uploadFilesIfChanged", new DeduplicatedUpload(this, files, folderId, maxConcurrentUploads)
+                .start(getExecutor(), getExecutor(RequestScheduler.Priority.BULK)));
+    }
+
+    /**
+     * @return The MIME type of the file, guessed from its name without opening it.
+     */
+    private static String mimeTypeOf(java.io.File file) {
+        String mime = URLConnection.guessContentTypeFromName(file.getName());
+        return mime == null ? "application/octet-stream" : mime;
+    }
+
+    /**
+     * Uploads every file of a directory and its sub-directories to a drive folder, keeping the same structure. The
+     * folders are created as needed and listed once each, the files which already exist are updated. At-most
+     * {@link #setMaxConcurrentUploads(int)} files are uploaded at a time.
+     *
+     * @param directory The directory to upload
+     * @param folderId  The folder to upload the directory's content to, null for root.
+     * @param listener  The listener notified of the progress, by bytes, null for none.
+     * @return The upload, which can be used to monitor it and to get its task.
+     * @throws IOException if the directory cannot be read
+     */
+    public BulkUpload uploadAll(@Nonnull java.io.File directory, @Nullable String folderId, @Nullable ProgressListener listener) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory.toPath())) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        long totalBytes = 0;
+        for (Path file : files)
+            totalBytes += file.toFile().length();
+        return uploadAll(files.stream(), directory.toPath(), folderId, totalBytes, listener);
+    }
+
+    /**
+     * Uploads a stream of files to a drive folder, keeping their structure relative to the base directory. The
+     * stream is read as the files are uploaded, so it can be lazy and very large, and it is closed at the end. See
+     * {@link #uploadAll(java.io.File, String, ProgressListener)}.
+     *
+     * @param files    The files to upload, all under the base directory
+     * @param base     The directory whose structure is recreated in the folder
+     * @param folderId The folder to upload the files to, null for root.
+     * @param listener The listener notified of the progress, by bytes, once the whole stream is read. null for none.
+     * @return The upload, which can be used to monitor it and to get its task.
+     */
+    public BulkUpload uploadAll(@Nonnull Stream<Path> files, @Nonnull Path base, @Nullable String folderId, @Nullable ProgressListener listener) {
+        return uploadAll(files, base, folderId, -1, listener);
+    }
+
+    private BulkUpload uploadAll(Stream<Path> files, Path base, String folderId, long totalBytes, ProgressListener listener) {
+        BulkUpload upload = new BulkUpload(this, files, base, folderId, maxConcurrentUploads, totalBytes, listener);
+        upload.start(getExecutor(RequestScheduler.Priority.BULK));
+        track("uploadAll", upload.getTask());
+        return upload;
+    }
+
+    /**
+     * Sets the maximum number of files uploaded at the same time by a bulk upload (like
+     * {@link #uploadAll(java.io.File, String, ProgressListener)}).
+     *
+     * @param maxConcurrentUploads The maximum number of concurrent uploads, 8 by default.
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        if (maxConcurrentUploads < 1)
+            throw new IllegalArgumentException("maxConcurrentUploads must be positive");
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    /**
+     * Uploads a file as input-stream to the Google Drive or updates it if already exist. The stream is uploaded
+     * in resumable chunks, see {@link #uploadResumable(String, InputStream, long, String, ProgressListener)}.
      *
      * @param in       The stream from where to read the file.
      * @param folderId The folder to upload the file to, null for root.
      * @param listener The interface to monitor the progress of the upload.
      */
     public void uploadFile(@Nonnull String name, @Nonnull InputStream in, @Nullable String folderId,@Nonnull ProgressListener listener) {
-        new Thread(() -> {
-            try {
-                fileId = AsyncTask.await(getFileId(name, folderId), 5);
-                String mime = "application/octet-stream";
-                File body = new File().setName(name).setMimeType(mime);
-                AbstractGoogleClientRequest<File> request;
-                AbstractInputStreamContent content = new AbstractInputStreamContent(mime) {
-                    @Override
-                    public InputStream getInputStream() throws IOException {
-                        return in;
-                    }
+        uploadResumable(name, in, -1, folderId, listener);
+    }
 
-                    @Override
-                    public long getLength() throws IOException {
-                        return in.available();
-                    }
+    /**
+     * Uploads a stream to the Google Drive, or updates the file if already exist, using the resumable upload
+     * protocol. If a chunk fails, only that chunk is sent again. The upload is not continued after a restart, see
+     * {@link #uploadResumable(String, InputStream, long, String, String, ProgressListener)}.
+     *
+     * @param name     The name of the file
+     * @param in       The stream from where to read the file.
+     * @param length   The length of the stream in bytes, -1 if unknown
+     * @param folderId The folder to upload the file to, null for root.
+     * @param listener The interface to monitor the progress of the upload, progress is reported only if the length is known.
+     * @return The upload, which can be used to monitor it and to get its task.
+     */
+    public ResumableUpload uploadResumable(@Nonnull String name, @Nonnull InputStream in, long length, @Nullable String folderId, @Nullable ProgressListener listener) {
+        return uploadResumable(name, in, length, folderId, null, listener);
+    }
 
-                    @Override
-                    public boolean retrySupported() {
-                        return false;
-                    }
-                };
-                if (fileId == null) {
-                    body.setParents(Collections.singletonList(folderId == null ? "root" : folderId));
-                    request = drive.files().create(body,content);
-                } else {
-                    request = drive.files().update(fileId, body,content);
-                }
-                MediaHttpUploader uploader = request.getMediaHttpUploader();
-                uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE);
-                uploader.setProgressListener(client -> listener.onProgress((int) (client.getProgress() * 100)));
-                listener.onFinish(request.execute().getId());
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Uploads a stream to the Google Drive, or updates the file if already exist, using the resumable upload
+     * protocol. If a chunk fails, only that chunk is sent again. If a session directory is set with
+     * {@link #setUploadSessionDirectory(java.io.File)}, an interrupted upload continues from where it stopped
+     * when the same stream is uploaded again with the same resume token, even after a restart.
+     *
+     * @param name        The name of the file
+     * @param in          The stream from where to read the file.
+     * @param length      The length of the stream in bytes, -1 if unknown. An upload of unknown length is never resumed.
+     * @param folderId    The folder to upload the file to, null for root.
+     * @param resumeToken A value identifying the content of the stream, like its checksum or a version, which must
+     *                    change when the content changes. Null to not resume the upload.
+     * @param listener    The interface to monitor the progress of the upload, progress is reported only if the length is known.
+     * @return The upload, which can be used to monitor it and to get its task.
+     */
+    public ResumableUpload uploadResumable(@Nonnull String name, @Nonnull InputStream in, long length, @Nullable String folderId, @Nullable String resumeToken, @Nullable ProgressListener listener) {
+        java.io.File sessionDirectory = uploadSessionDirectory;
+        ResumableUpload upload = new ResumableUpload(drive, name, "application/octet-stream", folderId, in, length, uploadChunkSize,
+                sessionDirectory == null ? null : sessionDirectory.toPath(), resumeToken, listener);
+        upload.setTask(track("uploadResumable", callAsync(RequestScheduler.Priority.BULK, () -> {
+            String id;
+            try {
+                id = findFileId(name, folderId);
+            } catch (IOException e) {
+                if (listener != null)
+                    listener.onFailed(e);
+                throw e;
             }
-        }).start();
+            if (id != null)
+                changed(id);
+            return cacheUpload(name, folderId, upload.run(id));
+        })));
+        return upload;
+    }
+
+    /**
+     * Sets the size of the chunks of the resumable uploads.
+     *
+     * @param chunkSize The chunk size in bytes, a multiple of 256 KB, or 0 to adapt it to the network speed (the default).
+     */
+    public void setUploadChunkSize(int chunkSize) {
+        if (chunkSize < 0 || chunkSize % ResumableUpload.CHUNK_GRANULARITY != 0)
+            throw new IllegalArgumentException("Chunk size must be a multiple of 256 KB");
+        this.uploadChunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the directory where the sessions of the resumable uploads are saved, so that they can be resumed
+     * after a restart. Only the uploads of known length given a resume token are saved.
+     *
+     * @param directory The directory, null to not save the sessions (the default).
+     */
+    public void setUploadSessionDirectory(@Nullable java.io.File directory) {
+        this.uploadSessionDirectory = directory;
     }
 
     /**
@@ -143,19 +598,39 @@ public class EasyDrive {
      * @return Call with the created folder ID
      */
     public AsyncTask<String> createFolder(@Nonnull String name, @Nullable String folderId) {
-        return AsyncTask.callAsync(() -> {
-            String id = AsyncTask.await(getFileId(name, folderId), 5);
-            File body = new File()
-                    .setName(name)
-                    .setParents(Collections.singletonList(folderId == null ? "root" : folderId))
-                    .setMimeType("application/vnd.google-apps.folder");
-            if (id == null)
-                return drive.files().create(body).execute().getId();
-            else
+        return track("createFolder", callAsync(RequestScheduler.Priority.INTERACTIVE, () -> createFolderIfAbsent(name, folderId)));
+    }
+
+    /**
+     * Same as {@link #createFolder(String, String)}, but runs on the calling thread. Concurrent calls for the same
+     * folder share the same lookup and creation, so that the folder is not created twice.
+     */
+    String createFolderIfAbsent(String name, String folderId) throws IOException {
+        return createFolderIfAbsent(name, folderId, null);
+    }
+
+    /**
+     * @param created Set to true if the folder was created by this call, and is therefore empty. Null if not needed.
+     */
+    String createFolderIfAbsent(String name, String folderId, @Nullable AtomicBoolean created) throws IOException {
+        return folderCreations.run(List.of(folderId == null ? "root" : folderId, name), () -> {
+            String id = findFileId(name, folderId);
+            if (id != null)
                 return id;
+            if (created != null)
+                created.set(true);
+            return createNewFolder(name, folderId);
         });
     }
 
+    String createNewFolder(String name, String folderId) throws IOException {
+        File body = new File()
+                .setName(name)
+                .setParents(Collections.singletonList(folderId == null ? "root" : folderId))
+                .setMimeType("application/vnd.google-apps.folder");
+        return cacheId(name, folderId, drive.files().create(body).execute().getId(), TreeWalker.FOLDER_MIME);
+    }
+
     /**
      * Creates an empty folder recursively from the given path.
      * For example, if the path is "folder1/folder2/mainFolder", it will create the folders "folder1" and "folder2"
@@ -171,13 +646,10 @@ public class EasyDrive {
             path = path.substring(0, path.length() - 1);
 
         var parts = path.split("/");
-        return AsyncTask.callAsync(() -> {
-            String parent = "root";
-            for (String folder : parts) {
-                parent = AsyncTask.await(createFolder(folder, parent), 5);
-            }
-            return parent;
-        });
+        AsyncTask<String> parent = AsyncTask.completed("root");
+        for (String folder : parts)
+            parent = parent.flatMap(id -> createFolder(folder, id));
+        return track("createFolderRecursively", parent);
     }
 
     /**
@@ -188,7 +660,10 @@ public class EasyDrive {
      * @return Call with the updated file ID
      */
     public AsyncTask<String> updateFile(@Nonnull String fileId, @Nonnull java.io.File updatedFile) {
-        return AsyncTask.callAsync(() -> drive.files().update(fileId, new File(), new FileContent(updatedFile.toURL().openConnection().getContentType(), updatedFile)).execute().getId());
+        return track("updateFile", callAsync(() -> {
+            changed(fileId);
+            return indexed(drive.files().update(fileId, new File(), new FileContent(mimeTypeOf(updatedFile), updatedFile)).setFields(MetadataIndex.FIELDS).execute());
+        }));
     }
 
     /**
@@ -199,10 +674,11 @@ public class EasyDrive {
      * @return Call indication success or failure.
      */
     public AsyncTask<Void> updateFile(@Nonnull String fileId, @Nonnull String content) {
-        return AsyncTask.callAsync(() -> {
-            drive.files().update(fileId, new File(), ByteArrayContent.fromString("text/plain", content)).execute();
+        return track("updateFile", callAsync(() -> {
+            changed(fileId);
+            indexed(drive.files().update(fileId, new File(), ByteArrayContent.fromString("text/plain", content)).setFields(MetadataIndex.FIELDS).execute());
             return null;
-        });
+        }));
     }
 
     /**
@@ -214,29 +690,36 @@ public class EasyDrive {
      * @return Call with the created file ID
      */
     public AsyncTask<String> createTxtFile(@Nonnull String name, @Nonnull String content, @Nullable String folderId) {
-        return AsyncTask.callAsync(() -> {
-            String id = AsyncTask.await(getFileId(name, folderId), 5);
-            File body = new File()
-                    .setName(name)
-                    .setMimeType("text/plain");
-            if (id == null){
-                body.setParents(Collections.singletonList(folderId == null ? "root" : folderId));
-                return drive.files().create(body, new ByteArrayContent("text/plain", content.getBytes())).execute().getId();
-            } else
-                return drive.files().update(id, body, new ByteArrayContent("text/plain", content.getBytes())).execute().getId();
-        });
+        return track("createTxtFile", getFileId(name, folderId).flatMap(id -> callAsync(() -> writeTxtFile(name, content, folderId, id))));
+    }
+
+    private String writeTxtFile(String name, String content, String folderId, String id) throws IOException {
+        File body = new File()
+                .setName(name)
+                .setMimeType("text/plain");
+        if (id == null){
+            body.setParents(Collections.singletonList(folderId == null ? "root" : folderId));
+            return cacheUpload(name, folderId, drive.files().create(body, new ByteArrayContent("text/plain", content.getBytes())).setFields(MetadataIndex.FIELDS).execute());
+        } else {
+            changed(id);
+            return cacheUpload(name, folderId, drive.files().update(id, body, new ByteArrayContent("text/plain", content.getBytes())).setFields(MetadataIndex.FIELDS).execute());
+        }
     }
 
     /**
      * Gets the input stream of the file resource located on your drive. You can download the file using it but
-     * don't forget to close it. Note that the input-stream returned is not buffered and {@code available()} method
-     * may return 0.
+     * don't forget to close it, its connection is not returned to the pool until then. Note
+     * that the input-stream returned is not buffered and {@code available()} method may return 0.
      *
      * @param id The file id
      * @return Call with the input stream of the file
      */
     public AsyncTask<InputStream> getAsInputStream(String id) {
-        return AsyncTask.callAsync(() -> drive.files().get(id).executeMedia().getContent());
+        return track("getAsInputStream", callAsync(() -> contentReader().open(id)));
+    }
+
+    private ContentReader contentReader() {
+        return new ContentReader(drive, getBufferPool(), contentCache, readyIndex());
     }
 
     /**
@@ -247,69 +730,296 @@ public class EasyDrive {
      * @param listener  The listener for monitoring the download progress
      */
     public void download(@Nonnull String fileId, @Nonnull String directory, @Nonnull ProgressListener listener) {
+        java.io.File target;
         try {
-            InputStream in = AsyncTask.await(getAsInputStream(fileId), 5);
-            File file = drive.files().get(fileId).setFields("name,size").execute();
-            String name = file.getName();
-            OutputStream os = new FileOutputStream(new java.io.File(directory, name));
-            int read;
-            long currentBytes = 0;
-            byte[] bytes = new byte[1024];
-            while ((read = in.read(bytes)) != -1) {
-                currentBytes += read;
-                os.write(bytes, 0, read);
-                listener.onProgress((int) ((currentBytes * 100) / file.getSize()));
-            }
-            os.close();
-            in.close();
-            listener.onFinish(null);
+            target = new java.io.File(directory, drive.files().get(fileId).setFields("name").execute().getName());
         } catch (Exception e) {
             listener.onFailed(e);
+            return;
+        }
+        AtomicBoolean failed = new AtomicBoolean();
+        ProgressListener readListener = new ProgressListener() {
+            @Override
+            public void onProgress(int percentage) {
+                listener.onProgress(percentage);
+            }
+
+            @Override
+            public void onFinish(@Nullable String id) {
+                // reported once the file is closed
+            }
+
+            @Override
+            public void onFailed(@Nonnull Exception e) {
+                failed.set(true);
+                listener.onFailed(e);
+            }
+        };
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            contentReader().read(fileId, data -> {
+                while (data.hasRemaining())
+                    channel.write(data);
+            }, readListener);
+        } catch (IOException | RuntimeException e) {
+            // the failures of the read are already reported, not those of opening or closing the file
+            if (!failed.get())
+                listener.onFailed(e);
+            return;
         }
+        listener.onFinish(null);
+    }
+
+    /**
+     * Downloads the file from the drive to the directory provided using several connections at the same time.
+     * Each connection fetches a different part of the file, which is written directly at its position. If the
+     * download is interrupted, calling this method again continues it from the parts already downloaded.
+     *
+     * @param fileId      The file id of the file to download
+     * @param directory   The directory to download the file to
+     * @param connections The number of parts downloaded at the same time
+     * @param listener    The listener for monitoring the download progress
+     * @return Call with the downloaded file
+     */
+    public AsyncTask<java.io.File> download(@Nonnull String fileId, @Nonnull String directory, int connections, @Nonnull ProgressListener listener) {
+        if (connections < 1)
+            throw new IllegalArgumentException("connections must be positive");
+        return track("download", new ParallelDownload(drive, fileId, new java.io.File(directory), connections, listener).start(getExecutor(RequestScheduler.Priority.BULK)));
     }
 
     /**
      * Directly reads the contents of the file without downloading it. This method runs asynchronously
-     * and is not intended to be used to read large files.
+     * and is not intended to be used to read large files, the whole file is held in memory. Use
+     * {@link #readContent(String, OutputStream, ProgressListener)} to stream it instead.
      *
      * @param fileId The file id
-     * @return Call with the contents of the file
+     * @return Call with the contents of the file, or an exception if it is larger than 2 GB.
      */
     public AsyncTask<byte[]> getContent(@Nonnull String fileId) {
-        return AsyncTask.callAsync(() -> {
-            InputStream in = AsyncTask.await(getAsInputStream(fileId), 5);
-            byte[] bytes = new byte[drive.files().get(fileId).setFields("size").execute().getSize().intValue()];
-            in.read(bytes);
-            return bytes;
-        });
+        return track("getContent", callAsync(() -> contentReader().readAll(fileId)));
     }
 
     /**
-     * Gets the size of the file with the given id.
+     * Reads the contents of the file through pooled direct buffers, without holding it in memory. The callback is
+     * called with every buffer filled, in order, on the thread of the task. The buffer is reused once the callback
+     * returns, so its content must be consumed or copied before. Only one request is made, even with a listener.
      *
-     * @param id The file id
-     * @return Call with the file size
+     * @param fileId   The file id
+     * @param callback The callback called with every chunk of the file
+     * @param listener The listener notified of the progress, at-most once per percent and every 100 ms, null for none.
+     * @return Call with the number of bytes read
+     */
+    public AsyncTask<Long> readContent(@Nonnull String fileId, @Nonnull ContentCallback callback, @Nullable ProgressListener listener) {
+        return track("readContent", callAsync(() -> contentReader().read(fileId, callback, listener)));
+    }
+
+    /**
+     * Writes the contents of the file to the channel, like a {@link java.nio.channels.FileChannel} or a
+     * {@link java.nio.channels.SocketChannel}. The channel is not closed. See
+     * {@link #readContent(String, ContentCallback, ProgressListener)}.
+     *
+     * @param fileId   The file id
+     * @param target   The channel to write to
+     * @param listener The listener notified of the progress, null for none.
+     * @return Call with the number of bytes written
+     */
+    public AsyncTask<Long> readContent(@Nonnull String fileId, @Nonnull WritableByteChannel target, @Nullable ProgressListener listener) {
+        return readContent(fileId, data -> {
+            while (data.hasRemaining())
+                target.write(data);
+        }, listener);
+    }
+
+    /**
+     * Writes the contents of the file to the stream. The stream is not closed. See
+     * {@link #readContent(String, ContentCallback, ProgressListener)}.
+     *
+     * @param fileId   The file id
+     * @param out      The stream to write to
+     * @param listener The listener notified of the progress, null for none.
+     * @return Call with the number of bytes written
+     */
+    public AsyncTask<Long> readContent(@Nonnull String fileId, @Nonnull OutputStream out, @Nullable ProgressListener listener) {
+        return readContent(fileId, Channels.newChannel(out), listener);
+    }
+
+    /**
+     * Opens the file for random access, without downloading it. The parts of the file read are fetched with HTTP
+     * {@code Range} requests by blocks, which are cached, and read ahead when the file is read sequentially. See
+     * {@link DriveChannel}.
+     *
+     * @param fileId  The file id
+     * @param options The options of the channel, like the size of its blocks and of its cache
+     * @return Call with the channel, to be closed
+     */
+    public AsyncTask<DriveChannel> openChannel(@Nonnull String fileId, @Nonnull DriveChannel.Options options) {
+        return track("openChannel", callAsync(RequestScheduler.Priority.INTERACTIVE, () -> {
+            MetadataIndex index = readyIndex();
+            File file = index == null ? null : index.get(fileId);
+            // the index has no size for the files without binary content, which are the ones without checksum
+            if (file == null || file.getMd5Checksum() == null)
+                file = drive.files().get(fileId).setFields("size").execute();
+            if (file.getSize() == null)
+                throw new IOException("File " + fileId + " has no binary content");
+            return new DriveChannel(drive, fileId, file.getSize(), options);
+        }));
+    }
+
+    /**
+     * Same as {@link #openChannel(String, DriveChannel.Options)}, with the default options: blocks of 64 KB, a cache
+     * of 16 MB on the heap and up to 4 MB read ahead.
+     *
+     * @param fileId The file id
+     * @return Call with the channel, to be closed
+     */
+    public AsyncTask<DriveChannel> openChannel(@Nonnull String fileId) {
+        return openChannel(fileId, new DriveChannel.Options());
+    }
+
+    /**
+     * Gets the total size of the files in the folder with the given id, including all its sub-folders. The
+     * sub-folders are listed concurrently, see {@link #walkTree(String, String, TreeWalker.Visitor)}.
+     *
+     * @param id The folder id
+     * @return Call with the size in bytes
      */
     public AsyncTask<Long> getFileSize(String id) {
-        return AsyncTask.callAsync(() -> {
-            try {
-                FileList result = drive.files().list()
-                        .setQ("'" + id + "' in parents")
-                        .setSpaces("drive")
-                        .execute();
-                long size = 0;
-                for (File file : result.getFiles()) {
-                    if (file.getMimeType().equals("application/vnd.google-apps.folder"))
-                        size += AsyncTask.await(getFileSize(id), 5);
-                    else
-                        size += file.getSize();
+        MetadataIndex index = readyIndex();
+        // a folder out of the index, or not seen by it yet, is walked on the drive
+        if (index != null && index.contains(id))
+            return track("getFileSize", callAsync(() -> index.sizeOf(id)));
+
+        LongAdder size = new LongAdder();
+        return track("getFileSize", walkTree(id, "size", (file, parent) -> {
+            if (file.getSize() != null)
+                size.add(file.getSize());
+        }).map(count -> size.sum()));
+    }
+
+    /**
+     * Counts the files in the folder with the given id, including all its sub-folders. Folders are not counted.
+     *
+     * @param folderId The folder id
+     * @return Call with the number of files
+     */
+    public AsyncTask<Long> countFiles(@Nonnull String folderId) {
+        LongAdder files = new LongAdder();
+        return track("countFiles", walkTree(folderId, "id", (file, parent) -> {
+            if (!TreeWalker.FOLDER_MIME.equals(file.getMimeType()))
+                files.increment();
+        }).map(count -> files.sum()));
+    }
+
+    /**
+     * Walks the folder tree under the given folder concurrently, calling the visitor for every file and folder
+     * found, as soon as they are listed. At-most {@link #setMaxConcurrentListings(int)} folders are listed at a time.
+     * This can be used to list a folder recursively.
+     *
+     * @param folderId The folder to walk
+     * @param fields   The fields of the files to fetch, "id" and "mimeType" are always fetched.
+     * @param visitor  The visitor, called from several threads at the same time.
+     * @return Call with the number of files and folders visited
+     */
+    public AsyncTask<Long> walkTree(@Nonnull String folderId, @Nonnull String fields, @Nonnull TreeWalker.Visitor visitor) {
+        return track("walkTree", new TreeWalker(drive, getExecutor(), maxConcurrentListings, fields, visitor).walk(folderId));
+    }
+
+    /**
+     * Deletes a folder and everything in it. The files of the tree are deleted in batches while it is being
+     * walked, then the folder itself is deleted along with its now empty sub-folders. Unlike {@link #delete(String)},
+     * which leaves this work to the server in a single call, this reports the result of every file.
+     *
+     * @param folderId The folder to delete
+     * @return Call with the result of every file deleted
+     */
+    public AsyncTask<BatchResult<Void>> deleteRecursively(@Nonnull String folderId) {
+        AsyncTask<BatchResult<Void>> task = new AsyncTask<>();
+        BatchResult<Void> result = new BatchResult<>();
+        List<String> buffer = new ArrayList<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        Exception[] walkError = new Exception[1];
+        Runnable finish = () -> {
+            if (outstanding.decrementAndGet() != 0)
+                return;
+            if (walkError[0] != null) {
+                task.complete(null, walkError[0]);
+                return;
+            }
+            delete(folderId).whenComplete((deleted, error) -> {
+                if (error == null)
+                    result.successes.put(folderId, null);
+                else
+                    result.failures.put(folderId, error);
+                task.complete(result, null);
+            });
+        };
+        Consumer<List<String>> deleteChunk = ids -> {
+            outstanding.incrementAndGet();
+            delete(ids).whenComplete((deleted, error) -> {
+                try {
+                    if (error == null) {
+                        result.successes.putAll(deleted.successes);
+                        result.failures.putAll(deleted.failures);
+                    } else {
+                        for (String id : ids)
+                            result.failures.put(id, error);
+                    }
+                } finally {
+                    finish.run();
                 }
-                return size;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return 0L;
+            });
+        };
+
+        walkTree(folderId, "id", (file, parent) -> {
+            if (TreeWalker.FOLDER_MIME.equals(file.getMimeType()))
+                return;
+            List<String> chunk = null;
+            synchronized (buffer) {
+                buffer.add(file.getId());
+                if (buffer.size() == MAX_BATCH_SIZE) {
+                    chunk = new ArrayList<>(buffer);
+                    buffer.clear();
+                }
+            }
+            if (chunk != null)
+                deleteChunk.accept(chunk);
+        }).whenComplete((count, error) -> {
+            walkError[0] = error;
+            List<String> rest;
+            synchronized (buffer) {
+                rest = new ArrayList<>(buffer);
+                buffer.clear();
             }
+            if (!rest.isEmpty() && error == null)
+                deleteChunk.accept(rest);
+            finish.run();
         });
+        return track("deleteRecursively", task);
+    }
+
+    /**
+     * Mirrors a local directory to a drive folder, uploading only the files which are new or changed since the
+     * last sync. The state of the last sync is kept in a manifest file; re-syncing an unchanged directory makes
+     * no request at all. Folders are created on the drive as needed.
+     *
+     * @param directory The local directory to sync
+     * @param folderId  The drive folder to sync to, null for root.
+     * @param manifest  The file where the state of the sync is kept, outside of the directory.
+     * @param options   The options of the sync
+     * @return Call with the result of the sync
+     */
+    public AsyncTask<DirectorySync.Result> sync(@Nonnull java.io.File directory, @Nullable String folderId, @Nonnull java.io.File manifest, @Nonnull DirectorySync.Options options) {
+        return track("sync", new DirectorySync(this, directory.toPath(), folderId, manifest.toPath(), options).start(getExecutor(RequestScheduler.Priority.BULK)));
+    }
+
+    /**
+     * Sets the maximum number of folders listed at the same time by a tree walk (like {@link #getFileSize(String)}).
+     *
+     * @param maxConcurrentListings The maximum number of concurrent listings, 8 by default.
+     */
+    public void setMaxConcurrentListings(int maxConcurrentListings) {
+        if (maxConcurrentListings < 1)
+            throw new IllegalArgumentException("maxConcurrentListings must be positive");
+        this.maxConcurrentListings = maxConcurrentListings;
     }
 
     /**
@@ -319,7 +1029,11 @@ public class EasyDrive {
      * @return Call with the file name
      */
     public AsyncTask<String> getName(String id) {
-        return AsyncTask.callAsync(() -> drive.files().get(id).setFields("name").execute().getName());
+        return track("getName", callAsync(RequestScheduler.Priority.INTERACTIVE, () -> {
+            MetadataIndex index = readyIndex();
+            File file = index == null ? null : index.get(id);
+            return file != null ? file.getName() : names.run(id, () -> drive.files().get(id).setFields("name").execute().getName());
+        }));
     }
 
     /**
@@ -329,10 +1043,224 @@ public class EasyDrive {
      * @return A void call
      */
     public AsyncTask<Void> delete(@Nonnull String fileId) {
-        return AsyncTask.callAsync(() -> {
+        return track("delete", callAsync(() -> {
             drive.files().delete(fileId).execute();
+            forget(fileId);
             return null;
-        });
+        }));
+    }
+
+    /**
+     * Deletes many files or folders using batch requests. The ids are sent in batches of 100, and the items failed
+     * due to rate limits or server errors are retried.
+     *
+     * @param fileIds The ids of the files to delete
+     * @return Call with the result of each id
+     */
+    public AsyncTask<BatchResult<Void>> delete(@Nonnull Collection<String> fileIds) {
+        return track("delete", this.<Void, Void>executeBatches(fileIds, new BatchResult<>(), (batch, id, callback) -> drive.files().delete(id).queue(batch, callback), result -> null, (id, result) -> forget(id)));
+    }
+
+    /**
+     * Gets the metadata of many files using batch requests.
+     *
+     * @param fileIds The ids of the files
+     * @param fields  The fields to fetch, for example "id,name,size"
+     * @return Call with the metadata of each id
+     */
+    public AsyncTask<BatchResult<File>> getMetadata(@Nonnull Collection<String> fileIds, @Nonnull String fields) {
+        return track("getMetadata", this.<File, File>executeBatches(fileIds, new BatchResult<>(), (batch, id, callback) -> drive.files().get(id).setFields(fields).queue(batch, callback), file -> file, null));
+    }
+
+    /**
+     * Creates many folders in the same parent folder, if not already exist, using batch requests. The existing
+     * folders are found with a single listing of the parent folder.
+     *
+     * @param names    The names of the folders
+     * @param folderId The folder to create the folders in, null for root.
+     * @return Call with the id of each folder name
+     */
+    public AsyncTask<BatchResult<String>> createFolders(@Nonnull Collection<String> names, @Nullable String folderId) {
+        String parent = folderId == null ? "root" : folderId;
+        return track("createFolders", callAsync(() -> {
+            Map<String, String> existing = new HashMap<>();
+            Drive listing = driveFor(folderId);
+            String pageToken = null;
+            do {
+                FileList list = listing.files().list()
+                        .setQ("'" + parent + "' in parents and mimeType = '" + TreeWalker.FOLDER_MIME + "' and trashed = false")
+                        .setFields("nextPageToken,files(id,name)")
+                        .setPageSize(1000)
+                        .setPageToken(pageToken)
+                        .execute();
+                for (File file : list.getFiles())
+                    existing.putIfAbsent(file.getName(), file.getId());
+                pageToken = list.getNextPageToken();
+            } while (pageToken != null);
+
+            return existing;
+        }).flatMap(existing -> {
+            BatchResult<String> result = new BatchResult<>();
+            List<String> missing = new ArrayList<>();
+            for (String name : new LinkedHashSet<>(names)) {
+                if (existing.containsKey(name))
+                    result.successes.put(name, cacheId(name, folderId, existing.get(name), TreeWalker.FOLDER_MIME));
+                else
+                    missing.add(name);
+            }
+            return this.<File, String>executeBatches(missing, result, (batch, name, callback) -> {
+                File body = new File()
+                        .setName(name)
+                        .setParents(Collections.singletonList(parent))
+                        .setMimeType("application/vnd.google-apps.folder");
+                drive.files().create(body).setFields("id").queue(batch, callback);
+            }, File::getId, (name, id) -> cacheId(name, folderId, id, TreeWalker.FOLDER_MIME));
+        }));
+    }
+
+    /**
+     * Same as {@link #delete(Collection)}, but runs the batches one after the other on the calling thread.
+     */
+    BatchResult<Void> deleteNow(Collection<String> fileIds) {
+        BatchResult<Void> result = new BatchResult<>();
+        for (List<String> chunk : chunk(fileIds)) {
+            this.<Void, Void>executeBatch(chunk, result, (batch, id, callback) -> drive.files().delete(id).queue(batch, callback), response -> null, (id, response) -> forget(id));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #getMetadata(Collection, String)}, but runs the batches one after the other on the calling thread.
+     */
+    BatchResult<File> getMetadataNow(Collection<String> fileIds, String fields) {
+        BatchResult<File> result = new BatchResult<>();
+        for (List<String> chunk : chunk(fileIds))
+            this.<File, File>executeBatch(chunk, result, (batch, id, callback) -> drive.files().get(id).setFields(fields).queue(batch, callback), file -> file, null);
+        return result;
+    }
+
+    private static Queue<List<String>> chunk(Collection<String> keys) {
+        Queue<List<String>> chunks = new ConcurrentLinkedQueue<>();
+        List<String> chunk = new ArrayList<>();
+        for (String key : new LinkedHashSet<>(keys)) {
+            chunk.add(key);
+            if (chunk.size() == MAX_BATCH_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty())
+            chunks.add(chunk);
+        return chunks;
+    }
+
+    private <R, T> AsyncTask<BatchResult<T>> executeBatches(Collection<String> keys, BatchResult<T> result, BatchQueuer<R> queuer, Function<R, T> mapper, @Nullable BiConsumer<String, T> onSuccess) {
+        Queue<List<String>> chunks = chunk(keys);
+        AsyncTask<BatchResult<T>> task = new AsyncTask<>();
+        int workers = Math.min(maxConcurrentBatches, chunks.size());
+        if (workers == 0) {
+            task.complete(result, null);
+            return task;
+        }
+
+        AtomicInteger running = new AtomicInteger(workers);
+        Executor executor = getExecutor(RequestScheduler.Priority.BULK);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(() -> {
+                List<String> next;
+                while ((next = chunks.poll()) != null)
+                    executeBatch(next, result, queuer, mapper, onSuccess);
+                if (running.decrementAndGet() == 0)
+                    task.complete(result, null);
+            });
+        }
+        return task;
+    }
+
+    private <R, T> void executeBatch(List<String> keys, BatchResult<T> result, BatchQueuer<R> queuer, Function<R, T> mapper, BiConsumer<String, T> onSuccess) {
+        List<String> pending = keys;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            boolean lastAttempt = attempt == MAX_BATCH_ATTEMPTS;
+            List<String> retry = Collections.synchronizedList(new ArrayList<>());
+            boolean[] throttled = new boolean[1];
+            try {
+                BatchRequest batch = drive.batch(drive.getRequestFactory().getInitializer());
+                for (String key : pending) {
+                    queuer.queue(batch, key, new JsonBatchCallback<>() {
+                        @Override
+                        public void onSuccess(R response, HttpHeaders headers) {
+                            T value = mapper.apply(response);
+                            result.successes.put(key, value);
+                            if (onSuccess != null)
+                                onSuccess.accept(key, value);
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                            if (isQuotaError(error) && !throttled[0]) {
+                                throttled[0] = true;
+                                scheduler.throttled();
+                            }
+                            if (!lastAttempt && isRetryable(error)) {
+                                retry.add(key);
+                                DriveMetrics metrics = EasyDrive.this.metrics;
+                                if (metrics != null)
+                                    metrics.recordRetry("batch", error.getCode());
+                            } else {
+                                HttpResponseException.Builder details = new HttpResponseException.Builder(error.getCode(), null, headers)
+                                        .setMessage(error.getCode() + " " + error.getMessage());
+                                result.failures.put(key, new GoogleJsonResponseException(details, error));
+                            }
+                        }
+                    });
+                }
+                // the requests of a batch count one by one in the quota
+                scheduler.execute(batch, pending.size());
+            } catch (Exception e) {
+                for (String key : pending) {
+                    if (result.successes.containsKey(key) || result.failures.containsKey(key) || retry.contains(key))
+                        continue;
+                    if (lastAttempt)
+                        result.failures.put(key, e);
+                    else
+                        retry.add(key);
+                }
+            }
+
+            pending = new ArrayList<>(retry);
+            // after a quota error, the scheduler pauses the next batch by itself
+            if (!pending.isEmpty() && !throttled[0]) {
+                try {
+                    Thread.sleep(scheduler.backoffMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (String key : pending)
+                        result.failures.put(key, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean isRetryable(GoogleJsonError error) {
+        return error.getCode() >= 500 || isQuotaError(error);
+    }
+
+    private static boolean isQuotaError(GoogleJsonError error) {
+        int code = error.getCode();
+        if (code == 429)
+            return true;
+        if (code == 403 && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+                if ("userRateLimitExceeded".equals(info.getReason()) || "rateLimitExceeded".equals(info.getReason()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private interface BatchQueuer<R> {
+        void queue(BatchRequest batch, String key, JsonBatchCallback<R> callback) throws IOException;
     }
 
     /**
@@ -343,36 +1271,191 @@ public class EasyDrive {
      * @return Call with the file ID if found, null otherwise.
      */
     public AsyncTask<String> getFileId(@Nonnull String fileName, @Nullable String folderId) {
-        return AsyncTask.callAsync(() -> {
-            List<File> files = drive.files()
-                    .list()
-                    .setQ("name = '" + fileName + "' and '" + (folderId == null ? "root" : folderId) + "' in parents")
-                    .execute()
-                    .getFiles();
-            if (files.size() == 0)
-                return null;
-            else
-                return files.get(0).getId();
-        });
+        return track("getFileId", callAsync(RequestScheduler.Priority.INTERACTIVE, () -> findFileId(fileName, folderId)));
+    }
+
+    String findFileId(String fileName, String folderId) throws IOException {
+        FileIdCache cache = idCache;
+        if (cache != null) {
+            String id = cache.get(folderId == null ? "root" : folderId, fileName);
+            if (id != null)
+                return id;
+        }
+        File file = findFile(fileName, folderId);
+        return file == null ? null : file.getId();
+    }
+
+    /**
+     * Same as {@link #findFileId(String, String)}, but also gets the checksum of the file. The id cache, which
+     * does not know it, is not used. Concurrent lookups of the same file share the same request.
+     */
+    File findFile(String fileName, String folderId) throws IOException {
+        String parent = folderId == null ? "root" : folderId;
+        return lookups.run(List.of(parent, fileName), () -> lookup(fileName, folderId, parent));
+    }
+
+    private File lookup(String fileName, String folderId, String parent) throws IOException {
+        MetadataIndex index = readyIndex();
+        if (index != null) {
+            String id = index.findId(fileName, parent);
+            File file = id == null ? null : index.get(id);
+            if (file != null) {
+                cacheId(fileName, folderId, id);
+                return file;
+            }
+        }
+
+        List<File> files = driveFor(folderId).files()
+                .list()
+                .setQ("name = '" + fileName.replace("\\", "\\\\").replace("'", "\\'") + "' and '" + parent + "' in parents and trashed = false")
+                .setFields("files(id,md5Checksum)")
+                .execute()
+                .getFiles();
+        if (files.size() == 0)
+            return null;
+        cacheId(fileName, folderId, files.get(0).getId());
+        return files.get(0);
+    }
+
+    private String cacheId(String fileName, String folderId, String id) {
+        return cacheId(fileName, folderId, id, null);
+    }
+
+    /**
+     * @param mimeType The mime type of the file, for the index to know a folder created by this library as such.
+     *                 Null if unknown.
+     */
+    private String cacheId(String fileName, String folderId, String id, @Nullable String mimeType) {
+        FileIdCache cache = idCache;
+        if (cache != null && id != null)
+            cache.put(folderId == null ? "root" : folderId, fileName, id);
+        MetadataIndex index = metadataIndex;
+        if (index != null && id != null)
+            index.added(id, fileName, folderId == null ? "root" : folderId, mimeType);
+        return id;
+    }
+
+    /**
+     * Same as {@link #cacheId(String, String, String)} for a file just uploaded, also recording its new checksum and
+     * size in the index so that an upload of the previous content is not taken as unchanged.
+     */
+    private String cacheUpload(String fileName, String folderId, File file) {
+        cacheId(fileName, folderId, file.getId());
+        return indexed(file);
+    }
+
+    private String indexed(File file) {
+        MetadataIndex index = metadataIndex;
+        if (index != null)
+            index.updated(file);
+        return file.getId();
+    }
+
+    /**
+     * Drops a file deleted from the drive from the caches.
+     */
+    void forget(String id) {
+        FileIdCache cache = idCache;
+        if (cache != null)
+            cache.invalidateId(id);
+        changed(id);
+        MetadataIndex index = metadataIndex;
+        if (index != null)
+            index.removed(id);
+    }
+
+    /**
+     * Drops the cached content of a file about to be updated.
+     */
+    private void changed(String id) {
+        ContentCache contents = contentCache;
+        if (contents != null)
+            contents.invalidate(id);
+    }
+
+    /**
+     * @param folderId The folder to list or to look up files in, null for root.
+     * @return The Drive service to send the listing through, the same for all its pages. {@link ShardedEasyDrive}
+     * spreads the listings over its accounts.
+     */
+    Drive driveFor(@Nullable String folderId) {
+        return drive;
+    }
+
+    private MetadataIndex readyIndex() {
+        MetadataIndex index = metadataIndex;
+        return index != null && index.isReady() ? index : null;
     }
 
     /**
-     * Lists the files of a folder
+     * Lists the files of a folder. All the pages are fetched, so for very large folders prefer
+     * {@link #streamFiles(String, int, String)} which does not hold all of them in memory.
      *
      * @param folderId The folder for which you want to list files
      * @return AsyncTask of {@link FileMetadata[]} as holder of file meta-info
      */
     public AsyncTask<FileMetadata[]> listFiles(@Nonnull String folderId) {
-        return AsyncTask.callAsync(() -> {
-            FileList list = drive.files().list().setQ("'" + folderId + "' in parents").setFields("files(name,size,id,mimeType)").execute();
-            FileMetadata[] array = new FileMetadata[list.getFiles().size()];
-            for (int i = 0; i < array.length; i++) {
-                File file = list.getFiles().get(i);
-                array[i] = new FileMetadata(file.getName(), file.getId(), file.getMimeType(), (int) (file.getSize() / (1024 * 1024)));
+        return track("listFiles", callAsync(() -> {
+            List<FileMetadata> files = new ArrayList<>();
+            MetadataIndex index = readyIndex();
+            if (index != null && index.contains(folderId)) {
+                for (File file : index.list(folderId))
+                    files.add(FileMetadata.of(file));
+                return files.toArray(new FileMetadata[0]);
             }
-            System.out.println("Listing files in folder " + array.length);
-            return array;
-        });
+            iterateFiles(folderId, 1000, DEFAULT_LIST_FIELDS).forEachRemaining(files::add);
+            return files.toArray(new FileMetadata[0]);
+        }));
+    }
+
+    /**
+     * Lists the files of a folder page by page. The next page is fetched while the callback handles the current one.
+     *
+     * @param folderId The folder for which you want to list files
+     * @param pageSize The number of files per page, at-most 1000
+     * @param fields   The fields of the files to fetch, for example "id,name,size"
+     * @param callback The callback called with every page, on the thread of the task
+     * @return Call with the total number of files listed
+     */
+    public AsyncTask<Long> listFiles(@Nonnull String folderId, int pageSize, @Nonnull String fields, @Nonnull PageCallback callback) {
+        return track("listFiles", callAsync(() -> {
+            FileIterator iterator = iterateFiles(folderId, pageSize, fields);
+            long count = 0;
+            List<File> page;
+            while ((page = iterator.nextPage()) != null) {
+                List<FileMetadata> files = new ArrayList<>(page.size());
+                for (File file : page)
+                    files.add(FileMetadata.of(file));
+                callback.onPage(files);
+                count += files.size();
+            }
+            return count;
+        }));
+    }
+
+    /**
+     * Returns a lazy iterator over the files of a folder. Pages are fetched when needed, and the next one is
+     * requested in background while the current one is consumed.
+     *
+     * @param folderId The folder for which you want to list files
+     * @param pageSize The number of files per page, at-most 1000
+     * @param fields   The fields of the files to fetch, for example "id,name,size"
+     * @return The iterator over the files of the folder
+     */
+    public FileIterator iterateFiles(@Nonnull String folderId, int pageSize, @Nonnull String fields) {
+        return new FileIterator(drive, "'" + folderId + "' in parents", pageSize, fields, getExecutor());
+    }
+
+    /**
+     * Returns a lazy, sequential stream of the files of a folder. See {@link #iterateFiles(String, int, String)}.
+     *
+     * @param folderId The folder for which you want to list files
+     * @param pageSize The number of files per page, at-most 1000
+     * @param fields   The fields of the files to fetch, for example "id,name,size"
+     * @return The stream of the files of the folder
+     */
+    public Stream<FileMetadata> streamFiles(@Nonnull String folderId, int pageSize, @Nonnull String fields) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateFiles(folderId, pageSize, fields), Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     /**
@@ -390,16 +1473,29 @@ public class EasyDrive {
             path = path.substring(0, path.length() - 1);
 
         var parts = path.split("/");
-        return AsyncTask.callAsync(() -> {
-            String parent = "root";
-            for (int i = 0; i < parts.length; i++) {
-                if (i == parts.length - 1)
-                    parent = AsyncTask.await(createTxtFile(parts[i], "", parent), 5);
-                else
-                    parent = AsyncTask.await(createFolder(parts[i], parent), 5);
-            }
-            return parent;
-        });
+        AsyncTask<String> parent = AsyncTask.completed("root");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            if (i == parts.length - 1)
+                parent = parent.flatMap(id -> createTxtFile(part, "", id));
+            else
+                parent = parent.flatMap(id -> createFolder(part, id));
+        }
+        return track("createFileRecursively", parent);
+    }
+
+    /**
+     * Interface for receiving the pages of a listing
+     */
+    public interface PageCallback {
+        void onPage(@Nonnull List<FileMetadata> files);
+    }
+
+    /**
+     * Interface for receiving the contents of a file chunk by chunk
+     */
+    public interface ContentCallback {
+        void onData(@Nonnull ByteBuffer data) throws IOException;
     }
 
     /**
@@ -0,0 +1,155 @@
+package apis.xcoder.easydrive;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory cache of (parent folder, name) to file id, used by {@link EasyDrive} to avoid a search query for
+ * every lookup. The cache holds at-most {@code maxEntries} entries, evicting the least recently used one, and every
+ * entry expires after the given time-to-live. It is safe to use from multiple threads.
+ * <p>
+ * Only the changes made through {@link EasyDrive} are reflected in the cache. If the files are also modified from
+ * elsewhere, keep the time-to-live short.
+ */
+public class FileIdCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, Set<String>> keysByParent = new HashMap<>();
+    private final Map<String, String> keyById = new HashMap<>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries The maximum number of entries to keep
+     * @param ttl        The time after which an entry expires
+     * @param unit       The unit of {@code ttl}
+     */
+    public FileIdCache(int maxEntries, long ttl, @Nonnull TimeUnit unit) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the cached id of the file.
+     *
+     * @param parentId The id of the parent folder
+     * @param name     The name of the file
+     * @return The file id, or null if not cached or expired.
+     */
+    @Nullable
+    public synchronized String get(@Nonnull String parentId, @Nonnull String name) {
+        String key = key(parentId, name);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (System.nanoTime() - entry.createdAt > ttlNanos) {
+            remove(key);
+            return null;
+        }
+        return entry.id;
+    }
+
+    /**
+     * Caches the id of the file, replacing the old one if any.
+     *
+     * @param parentId The id of the parent folder
+     * @param name     The name of the file
+     * @param id       The id of the file
+     */
+    public synchronized void put(@Nonnull String parentId, @Nonnull String name, @Nonnull String id) {
+        String key = key(parentId, name);
+        remove(key);
+        entries.put(key, new Entry(parentId, id, System.nanoTime()));
+        keysByParent.computeIfAbsent(parentId, k -> new HashSet<>()).add(key);
+        keyById.put(id, key);
+        if (entries.size() > maxEntries)
+            remove(entries.keySet().iterator().next());
+    }
+
+    /**
+     * Removes the entry of the file with the given name.
+     *
+     * @param parentId The id of the parent folder
+     * @param name     The name of the file
+     */
+    public synchronized void invalidate(@Nonnull String parentId, @Nonnull String name) {
+        remove(key(parentId, name));
+    }
+
+    /**
+     * Removes the entry of the file with the given id. If it is a folder, the entries of all its cached
+     * descendants are removed too.
+     *
+     * @param id The id of the file or folder
+     */
+    public synchronized void invalidateId(@Nonnull String id) {
+        String key = keyById.get(id);
+        if (key != null)
+            remove(key);
+
+        Set<String> children = keysByParent.get(id);
+        if (children != null) {
+            for (String child : new HashSet<>(children)) {
+                Entry entry = entries.get(child);
+                if (entry != null)
+                    invalidateId(entry.id);
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        keysByParent.clear();
+        keyById.clear();
+    }
+
+    /**
+     * @return The number of entries currently cached, including the expired ones not yet removed.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null)
+            return;
+        keyById.remove(entry.id, key);
+        Set<String> siblings = keysByParent.get(entry.parentId);
+        if (siblings != null) {
+            siblings.remove(key);
+            if (siblings.isEmpty())
+                keysByParent.remove(entry.parentId);
+        }
+    }
+
+    private static String key(String parentId, String name) {
+        return parentId + '/' + name;
+    }
+
+    private static final class Entry {
+        final String parentId;
+        final String id;
+        final long createdAt;
+
+        Entry(String parentId, String id, long createdAt) {
+            this.parentId = parentId;
+            this.id = id;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A lazy iterator over the files of a folder. Pages are fetched only when needed, and the next page is requested
+ * in background as soon as the current one is handed out, so that the network call overlaps with the processing
+ * of the current page.
+ * <p>
+ * Network errors are thrown as {@link UncheckedIOException} from {@link #hasNext()}.
+ */
+public class FileIterator implements Iterator<FileMetadata> {
+    private final Drive drive;
+    private final String query;
+    private final int pageSize;
+    private final String fields;
+    private final Executor executor;
+    private FutureTask<FileList> nextPage;
+    private Iterator<File> current = Collections.emptyIterator();
+
+    FileIterator(Drive drive, String query, int pageSize, String fields, Executor executor) {
+        this.drive = drive;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.fields = "nextPageToken,files(" + fields + ")";
+        this.executor = executor;
+        this.nextPage = fetch(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            List<File> page = nextPage();
+            if (page == null)
+                return false;
+            current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public FileMetadata next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return FileMetadata.of(current.next());
+    }
+
+    /**
+     * Returns the remaining files of the current page, or the next page if the current one is consumed. The
+     * page after it is requested in background.
+     *
+     * @return The files of the page, or null if there are no more pages.
+     */
+    List<File> nextPage() {
+        if (current.hasNext()) {
+            List<File> rest = new ArrayList<>();
+            current.forEachRemaining(rest::add);
+            return rest;
+        }
+        while (nextPage != null) {
+            FileList list;
+            try {
+                // runs the fetch on this thread if no worker has picked it yet, so that a busy pool can't block us
+                nextPage.run();
+                list = nextPage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Listing interrupted", e));
+            } catch (ExecutionException e) {
+                nextPage = null;
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? new UncheckedIOException((IOException) cause) : new RuntimeException(cause);
+            }
+            nextPage = list.getNextPageToken() == null ? null : fetch(list.getNextPageToken());
+            if (list.getFiles() != null && !list.getFiles().isEmpty())
+                return list.getFiles();
+        }
+        return null;
+    }
+
+    private FutureTask<FileList> fetch(String pageToken) {
+        FutureTask<FileList> task = new FutureTask<>(() -> drive.files().list()
+                .setQ(query)
+                .setPageSize(pageSize)
+                .setPageToken(pageToken)
+                .setFields(fields)
+                .execute());
+        executor.execute(task);
+        return task;
+    }
+}
@@ -1,15 +1,35 @@
-package apis.xcoder.easydrive;
-
-public class FileMetadata {
-    public String name;
-    public String id;
-    public String mimeType;
-    public int size;
-
-    public FileMetadata(String name, String id, String mimeType, int size) {
-        this.name = name;
-        this.id = id;
-        this.mimeType = mimeType;
-        this.size = size;
-    }
-}
\ No newline at end of file
+package apis.xcoder.easydrive;
+
+public class FileMetadata {
+    public String name;
+    public String id;
+    public String mimeType;
+    /**
+     * The size in megabytes, truncated.
+     * @deprecated use {@link #bytes} which is exact.
+     */
+    @Deprecated
+    public int size;
+    public long bytes;
+
+    @Deprecated
+    public FileMetadata(String name, String id, String mimeType, int size) {
+        this.name = name;
+        this.id = id;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.bytes = size * 1024L * 1024L;
+    }
+
+    public FileMetadata(String name, String id, String mimeType, long bytes) {
+        this.name = name;
+        this.id = id;
+        this.mimeType = mimeType;
+        this.size = (int) (bytes / (1024 * 1024));
+        this.bytes = bytes;
+    }
+
+    static FileMetadata of(com.google.api.services.drive.model.File file) {
+        return new FileMetadata(file.getName(), file.getId(), file.getMimeType(), file.getSize() == null ? 0L : file.getSize());
+    }
+}
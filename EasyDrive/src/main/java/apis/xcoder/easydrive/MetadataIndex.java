@@ -0,0 +1,447 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A local copy of the metadata (name, parents, size, mime type and MD5) of every file of the drive. It is built once
+ * with a full listing and then kept up-to-date by reading Drive's changes feed, either on demand with
+ * {@link #poll()} or on a schedule with {@link #startPolling(long, TimeUnit)}. The index can be saved to the disk
+ * and loaded back, in which case only the changes since it was saved are fetched.
+ * <p>
+ * When set on {@link EasyDrive}, lookups by id or by name are answered from memory. Since the changes are polled,
+ * the index can lag behind the drive by up to the polling interval.
+ */
+public class MetadataIndex {
+    private static final int FORMAT_VERSION = 1;
+    static final String FIELDS = "id,name,parents,size,mimeType,md5Checksum";
+    private final EasyDrive easyDrive;
+    private final Drive drive;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> names = new ConcurrentHashMap<>();
+    private volatile String rootId;
+    private volatile String pageToken;
+    private volatile Exception lastPollError;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates an empty index. Call {@link #build()} or {@link #load(java.io.File)} before using it.
+     *
+     * @param easyDrive The drive to index
+     */
+    public MetadataIndex(@Nonnull EasyDrive easyDrive) {
+        this.easyDrive = easyDrive;
+        this.drive = easyDrive.drive;
+    }
+
+    /**
+     * @return true if the index has been built or loaded.
+     */
+    public boolean isReady() {
+        return pageToken != null;
+    }
+
+    /**
+     * Builds the index from scratch by listing every file of the drive. This method blocks.
+     *
+     * @throws IOException if a request fails
+     */
+    public synchronized void build() throws IOException {
+        // taken before listing, so that the changes made during the listing are applied by the next poll
+        String startToken = drive.changes().getStartPageToken().execute().getStartPageToken();
+        String root = drive.files().get("root").setFields("id").execute().getId();
+        nodes.clear();
+        children.clear();
+        names.clear();
+        String token = null;
+        do {
+            FileList list = drive.files().list()
+                    .setQ("trashed = false")
+                    .setFields("nextPageToken,files(" + FIELDS + ")")
+                    .setPageSize(1000)
+                    .setPageToken(token)
+                    .execute();
+            for (File file : list.getFiles())
+                put(file);
+            token = list.getNextPageToken();
+        } while (token != null);
+        rootId = root;
+        pageToken = startToken;
+    }
+
+    /**
+     * Applies the changes made on the drive since the last poll. This method blocks.
+     *
+     * @return The number of changes applied
+     * @throws IOException if a request fails
+     * @throws IllegalStateException if the index is not built
+     */
+    public synchronized int poll() throws IOException {
+        if (!isReady())
+            throw new IllegalStateException("Index is not built");
+
+        int count = 0;
+        String token = pageToken;
+        while (true) {
+            ChangeList list = drive.changes().list(token)
+                    .setPageSize(1000)
+                    .setSpaces("drive")
+                    .setFields("nextPageToken,newStartPageToken,changes(fileId,removed,file(" + FIELDS + ",trashed))")
+                    .execute();
+            for (Change change : list.getChanges()) {
+                count++;
+                if (Boolean.TRUE.equals(change.getRemoved()) || change.getFile() == null || Boolean.TRUE.equals(change.getFile().getTrashed()))
+                    remove(change.getFileId());
+                else
+                    put(change.getFile());
+            }
+            if (list.getNewStartPageToken() != null) {
+                pageToken = list.getNewStartPageToken();
+                return count;
+            }
+            token = list.getNextPageToken();
+        }
+    }
+
+    /**
+     * Polls the changes periodically on a background thread. Failed polls are retried at the next interval. Every
+     * poll is recorded as the "pollIndex" operation of the metrics of the drive, if set, and the error of the last
+     * one is kept, see {@link #getLastPollError()}.
+     *
+     * @param interval The time between two polls
+     * @param unit     The unit of {@code interval}
+     */
+    public synchronized void startPolling(long interval, @Nonnull TimeUnit unit) {
+        stopPolling();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EasyDrive-index-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            long start = System.nanoTime();
+            Exception error = null;
+            try {
+                poll();
+            } catch (Exception e) {
+                error = e;
+            }
+            lastPollError = error;
+            DriveMetrics metrics = easyDrive.getMetrics();
+            if (metrics != null)
+                metrics.recordOperation("pollIndex", System.nanoTime() - start, error == null);
+        }, interval, interval, unit);
+    }
+
+    /**
+     * @return The error of the last poll made by {@link #startPolling(long, TimeUnit)}, null if it succeeded or
+     * none was made yet.
+     */
+    @Nullable
+    public Exception getLastPollError() {
+        return lastPollError;
+    }
+
+    /**
+     * Stops the polling started with {@link #startPolling(long, TimeUnit)}.
+     */
+    public synchronized void stopPolling() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @param fileId The file id, or "root"
+     * @return The metadata of the file, null if not in the index.
+     */
+    @Nullable
+    public File get(@Nonnull String fileId) {
+        Node node = nodes.get(resolve(fileId));
+        return node == null ? null : node.toFile();
+    }
+
+    /**
+     * @param fileId The file id, or "root"
+     * @return true if the file is in the index, so that what the index knows of it, like the files of a folder, can be
+     * trusted. The root folder, which is not listed, always is once the index is ready.
+     */
+    boolean contains(@Nonnull String fileId) {
+        String id = resolve(fileId);
+        return nodes.containsKey(id) || (id.equals(rootId) && isReady());
+    }
+
+    /**
+     * @param name     The name of the file
+     * @param folderId The id of the parent folder, or "root"
+     * @return The id of the file with that name in the folder, null if not in the index.
+     */
+    @Nullable
+    public String findId(@Nonnull String name, @Nonnull String folderId) {
+        Map<String, String> ids = names.get(resolve(folderId));
+        return ids == null ? null : ids.get(name);
+    }
+
+    /**
+     * @param folderId The id of the folder, or "root"
+     * @return The files directly in the folder
+     */
+    @Nonnull
+    public List<File> list(@Nonnull String folderId) {
+        Set<String> ids = children.get(resolve(folderId));
+        if (ids == null)
+            return Collections.emptyList();
+        List<File> files = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Node node = nodes.get(id);
+            if (node != null)
+                files.add(node.toFile());
+        }
+        return files;
+    }
+
+    /**
+     * @param folderId The id of the folder, or "root"
+     * @return The total size of the files in the folder and all its sub-folders.
+     */
+    public long sizeOf(@Nonnull String folderId) {
+        long size = 0;
+        Deque<String> folders = new ArrayDeque<>();
+        folders.push(resolve(folderId));
+        while (!folders.isEmpty()) {
+            Set<String> ids = children.get(folders.pop());
+            if (ids == null)
+                continue;
+            for (String id : ids) {
+                Node node = nodes.get(id);
+                if (node == null)
+                    continue;
+                if (TreeWalker.FOLDER_MIME.equals(node.mimeType))
+                    folders.push(id);
+                else
+                    size += node.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of files and folders in the index.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Records a file created by this library, before the changes feed reports it.
+     *
+     * @param mimeType The mime type of the file, so that a folder is known as such. Null if unknown.
+     */
+    void added(String id, String name, String parentId, @Nullable String mimeType) {
+        if (isReady() && !nodes.containsKey(id))
+            put(new File().setId(id).setName(name).setMimeType(mimeType).setParents(Collections.singletonList(resolve(parentId))));
+    }
+
+    /**
+     * Records the metadata of a file uploaded by this library, returned by the upload, before the changes feed
+     * reports it. The parents are kept if the metadata does not have them.
+     */
+    void updated(File file) {
+        if (!isReady())
+            return;
+        if (file.getParents() == null) {
+            Node node = nodes.get(file.getId());
+            file = file.clone().setParents(node == null ? null : List.of(node.parents));
+        }
+        put(file);
+    }
+
+    /**
+     * Records a file deleted by this library, before the changes feed reports it.
+     */
+    void removed(String id) {
+        if (isReady())
+            remove(id);
+    }
+
+    /**
+     * Saves the index in a compact binary file.
+     *
+     * @param file The file to save to
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save(@Nonnull java.io.File file) throws IOException {
+        if (!isReady())
+            throw new IllegalStateException("Index is not built");
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        // the files created or deleted by EasyDrive change the index at any time, the count must match the entries
+        List<Node> snapshot;
+        synchronized (nodes) {
+            snapshot = new ArrayList<>(nodes.values());
+        }
+        Map<String, Integer> mimeTypes = new HashMap<>();
+        List<String> mimeTable = new ArrayList<>();
+        for (Node node : snapshot) {
+            if (node.mimeType != null && mimeTypes.putIfAbsent(node.mimeType, mimeTable.size()) == null)
+                mimeTable.add(node.mimeType);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(rootId);
+            out.writeUTF(pageToken);
+            out.writeInt(mimeTable.size());
+            for (String mimeType : mimeTable)
+                out.writeUTF(mimeType);
+            out.writeInt(snapshot.size());
+            for (Node node : snapshot) {
+                out.writeUTF(node.id);
+                out.writeUTF(node.name == null ? "" : node.name);
+                out.writeInt(node.mimeType == null ? -1 : mimeTypes.get(node.mimeType));
+                out.writeLong(node.size);
+                out.writeUTF(node.md5 == null ? "" : node.md5);
+                out.writeByte(node.parents.length);
+                for (String parent : node.parents)
+                    out.writeUTF(parent);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads an index saved with {@link #save(java.io.File)}. Call {@link #poll()} afterwards to fetch the changes
+     * made since it was saved.
+     *
+     * @param file The file to load from
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public synchronized void load(@Nonnull java.io.File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file.toPath()), 64 * 1024)))) {
+            if (in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unsupported index format");
+            String root = in.readUTF();
+            String token = in.readUTF();
+            String[] mimeTable = new String[in.readInt()];
+            for (int i = 0; i < mimeTable.length; i++)
+                mimeTable[i] = in.readUTF();
+
+            nodes.clear();
+            children.clear();
+            names.clear();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String name = in.readUTF();
+                int mime = in.readInt();
+                long size = in.readLong();
+                String md5 = in.readUTF();
+                String[] parents = new String[in.readUnsignedByte()];
+                for (int j = 0; j < parents.length; j++)
+                    parents[j] = in.readUTF();
+                link(new Node(id, name, mime < 0 ? null : mimeTable[mime], size, md5.isEmpty() ? null : md5, parents));
+            }
+            rootId = root;
+            pageToken = token;
+        }
+    }
+
+    private String resolve(String id) {
+        return "root".equals(id) && rootId != null ? rootId : id;
+    }
+
+    // mutations lock on the map instead of the index, so that they do not wait for a poll in progress
+    private void put(File file) {
+        String[] parents = file.getParents() == null ? new String[0] : file.getParents().toArray(new String[0]);
+        Node node = new Node(file.getId(), file.getName(), file.getMimeType(), file.getSize() == null ? 0 : file.getSize(), file.getMd5Checksum(), parents);
+        synchronized (nodes) {
+            remove(file.getId());
+            link(node);
+        }
+    }
+
+    private void link(Node node) {
+        nodes.put(node.id, node);
+        for (String parent : node.parents) {
+            children.computeIfAbsent(parent, k -> ConcurrentHashMap.newKeySet()).add(node.id);
+            if (node.name != null)
+                names.computeIfAbsent(parent, k -> new ConcurrentHashMap<>()).putIfAbsent(node.name, node.id);
+        }
+    }
+
+    private void remove(String id) {
+        synchronized (nodes) {
+            Node node = nodes.remove(id);
+            if (node == null)
+                return;
+            for (String parent : node.parents) {
+                Set<String> ids = children.get(parent);
+                if (ids != null)
+                    ids.remove(node.id);
+                Map<String, String> byName = names.get(parent);
+                if (byName != null && node.name != null)
+                    byName.remove(node.name, node.id);
+            }
+        }
+    }
+
+    private static final class Node {
+        final String id;
+        final String name;
+        final String mimeType;
+        final long size;
+        final String md5;
+        final String[] parents;
+
+        Node(String id, String name, String mimeType, long size, String md5, String[] parents) {
+            this.id = id;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.md5 = md5;
+            this.parents = parents;
+        }
+
+        File toFile() {
+            return new File()
+                    .setId(id)
+                    .setName(name)
+                    .setMimeType(mimeType)
+                    .setSize(TreeWalker.FOLDER_MIME.equals(mimeType) ? null : size)
+                    .setMd5Checksum(md5)
+                    .setParents(List.of(parents));
+        }
+    }
+}
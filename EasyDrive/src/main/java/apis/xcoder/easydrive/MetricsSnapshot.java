@@ -0,0 +1,99 @@
+package apis.xcoder.easydrive;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The measurements of {@link DefaultMetrics} at a point in time. Counters only grow, so the rate of something,
+ * like the upload throughput, is the difference between two snapshots divided by the time between them:
+ * <pre>{@code
+ * double bytesPerSecond = (now.bytesSent - before.bytesSent) * 1e9 / (now.timestamp - before.timestamp);
+ * }</pre>
+ */
+public class MetricsSnapshot {
+    /**
+     * The value of {@link System#nanoTime()} when the snapshot was taken
+     */
+    public final long timestamp;
+    /**
+     * The latency of the operations of EasyDrive, by method name
+     */
+    public final Map<String, Latency> operations;
+    /**
+     * The latency of the HTTP requests, by request type
+     */
+    public final Map<String, Latency> requests;
+    /**
+     * The number of responses by status code, -1 for the requests which got no response
+     */
+    public final Map<Integer, Long> responses;
+    /**
+     * The number of retries by the status code which caused them
+     */
+    public final Map<Integer, Long> retries;
+    public final long bytesSent;
+    public final long bytesReceived;
+    /**
+     * The current value of the gauges, like "requests.inFlight" or "tasks.queued"
+     */
+    public final Map<String, Long> gauges;
+
+    MetricsSnapshot(long timestamp, Map<String, Latency> operations, Map<String, Latency> requests, Map<Integer, Long> responses,
+                    Map<Integer, Long> retries, long bytesSent, long bytesReceived, Map<String, Long> gauges) {
+        this.timestamp = timestamp;
+        this.operations = Collections.unmodifiableMap(operations);
+        this.requests = Collections.unmodifiableMap(requests);
+        this.responses = Collections.unmodifiableMap(responses);
+        this.retries = Collections.unmodifiableMap(retries);
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.gauges = Collections.unmodifiableMap(gauges);
+    }
+
+    /**
+     * @return The number of responses with a status code of 400 or more, and of the requests which got no response.
+     */
+    public long getErrorCount() {
+        long errors = 0;
+        for (Map.Entry<Integer, Long> entry : responses.entrySet()) {
+            if (entry.getKey() < 0 || entry.getKey() >= 400)
+                errors += entry.getValue();
+        }
+        return errors;
+    }
+
+    /**
+     * The distribution of the durations of an operation or a request type. Durations are in nanoseconds, and the
+     * percentiles are exact to about 6%.
+     */
+    public static class Latency {
+        public final long count;
+        /**
+         * The number of failed operations, or of requests with an error status
+         */
+        public final long failures;
+        public final long mean;
+        public final long max;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+
+        Latency(long count, long failures, long mean, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.failures = failures;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", failures=" + failures + ", mean=" + TimeUnit.NANOSECONDS.toMillis(mean)
+                    + "ms, p50=" + TimeUnit.NANOSECONDS.toMillis(p50) + "ms, p90=" + TimeUnit.NANOSECONDS.toMillis(p90)
+                    + "ms, p99=" + TimeUnit.NANOSECONDS.toMillis(p99) + "ms, max=" + TimeUnit.NANOSECONDS.toMillis(max) + "ms";
+        }
+    }
+}
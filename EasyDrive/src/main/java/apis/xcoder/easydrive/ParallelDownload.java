@@ -0,0 +1,263 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file using several connections at the same time. The file is split into ranges which are fetched
+ * with HTTP {@code Range} requests and written directly at their position in the pre-sized target file. The ranges
+ * already written are recorded in a {@code .part} file next to the target, so that an interrupted download continues
+ * from where it stopped.
+ * <p>
+ * The {@code .part} file also records the version of the file on the drive, its {@code headRevisionId} or else its
+ * {@code md5Checksum}, and the ranges written are only kept if the file still has that version when the download
+ * resumes. The version is checked again once all the ranges are written, since the file may change in the meantime.
+ */
+class ParallelDownload {
+    private static final int MIN_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_RANGE_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_RANGE_ATTEMPTS = 5;
+    private static final String VERSION_FIELDS = "headRevisionId,md5Checksum";
+
+    private final Drive drive;
+    private final String fileId;
+    private final java.io.File directory;
+    private final int connections;
+    private final EasyDrive.ProgressListener listener;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicInteger reported = new AtomicInteger(-1);
+    private volatile long size;
+    private int headerSize;
+
+    ParallelDownload(Drive drive, String fileId, java.io.File directory, int connections, EasyDrive.ProgressListener listener) {
+        this.drive = drive;
+        this.fileId = fileId;
+        this.directory = directory;
+        this.connections = connections;
+        this.listener = listener;
+    }
+
+    AsyncTask<java.io.File> start(Executor executor) {
+        AsyncTask<java.io.File> task = new AsyncTask<>();
+        executor.execute(() -> {
+            try {
+                File metadata = drive.files().get(fileId).setFields("name,size," + VERSION_FIELDS).execute();
+                if (metadata.getSize() == null)
+                    throw new IOException("File " + fileId + " has no binary content");
+
+                Path target = directory.toPath().resolve(metadata.getName());
+                Path part = directory.toPath().resolve(metadata.getName() + ".part");
+                size = metadata.getSize();
+                FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileChannel state;
+                long rangeSize;
+                ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+                // both stay open for the workers, so they are closed here only if the download can't start
+                try {
+                    state = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException | RuntimeException e) {
+                    closeAfter(e, channel);
+                    throw e;
+                }
+                try {
+                    rangeSize = openState(state, channel, size, versionOf(metadata));
+                    channel.truncate(size);
+                    if (size > 0 && channel.size() < size)
+                        channel.write(ByteBuffer.allocate(1), size - 1);
+
+                    int ranges = (int) ((size + rangeSize - 1) / rangeSize);
+                    ByteBuffer done = ByteBuffer.allocate(ranges);
+                    int read;
+                    do {
+                        read = state.read(done, headerSize + done.position());
+                    } while (read > 0 && done.hasRemaining());
+                    for (int i = 0; i < ranges; i++) {
+                        if (i < done.position() && done.get(i) == 1)
+                            downloaded.addAndGet(Math.min(rangeSize, size - i * rangeSize));
+                        else
+                            pending.add(i);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    closeAfter(e, channel, state);
+                    throw e;
+                }
+
+                int workers = Math.max(1, Math.min(connections, pending.size()));
+                AtomicInteger running = new AtomicInteger(workers);
+                AtomicInteger failed = new AtomicInteger();
+                Exception[] error = new Exception[1];
+                for (int i = 0; i < workers; i++) {
+                    executor.execute(() -> {
+                        Integer index;
+                        while (failed.get() == 0 && (index = pending.poll()) != null) {
+                            try {
+                                long start = index * rangeSize;
+                                fetchRange(channel, start, Math.min(size, start + rangeSize) - 1);
+                                state.write(ByteBuffer.wrap(new byte[]{1}), headerSize + index);
+                            } catch (Exception e) {
+                                if (failed.getAndIncrement() == 0)
+                                    error[0] = e;
+                            }
+                        }
+                        if (running.decrementAndGet() == 0)
+                            finish(task, channel, state, target, part, failed.get() == 0 ? checkVersion(metadata, state) : error[0]);
+                    });
+                }
+            } catch (Exception e) {
+                listener.onFailed(e);
+                task.complete(null, e);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Reads the range size of a previous download of the same version from the state file, or starts a new one if
+     * there is no usable state.
+     */
+    private long openState(FileChannel state, FileChannel channel, long size, String version) throws IOException {
+        byte[] expected = version.getBytes(StandardCharsets.UTF_8);
+        headerSize = Long.BYTES + Integer.BYTES + expected.length;
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        if (state.size() >= headerSize && channel.size() == size) {
+            while (header.hasRemaining() && state.read(header, header.position()) > 0) ;
+            header.flip();
+            long rangeSize = header.getLong();
+            if (rangeSize > 0 && header.getInt() == expected.length) {
+                byte[] recorded = new byte[expected.length];
+                header.get(recorded);
+                if (Arrays.equals(recorded, expected))
+                    return rangeSize;
+            }
+        }
+
+        long rangeSize = Math.max(MIN_RANGE_SIZE, Math.min(MAX_RANGE_SIZE, size / (connections * 4L)));
+        state.truncate(0);
+        header.clear();
+        state.write(header.putLong(rangeSize).putInt(expected.length).put(expected).flip(), 0);
+        return rangeSize;
+    }
+
+    /**
+     * @return The version recorded in the state file, empty if the drive has none for the file.
+     */
+    private static String versionOf(File metadata) {
+        if (metadata.getHeadRevisionId() != null)
+            return metadata.getHeadRevisionId();
+        return metadata.getMd5Checksum() == null ? "" : metadata.getMd5Checksum();
+    }
+
+    /**
+     * @return An exception if the file was modified on the drive while its ranges were downloaded, in which case the
+     * state is dropped so that the next download starts over.
+     */
+    private Exception checkVersion(File metadata, FileChannel state) {
+        String version = versionOf(metadata);
+        if (version.isEmpty())
+            return null;
+        try {
+            String current = versionOf(drive.files().get(fileId).setFields(VERSION_FIELDS).execute());
+            if (version.equals(current))
+                return null;
+            state.truncate(0);
+            return new IOException("File " + fileId + " was modified on the drive during the download");
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private void fetchRange(FileChannel channel, long start, long end) throws IOException, InterruptedException {
+        long position = start;
+        byte[] buffer = new byte[64 * 1024];
+        for (int attempt = 1; ; attempt++) {
+            long before = position;
+            try {
+                Drive.Files.Get request = drive.files().get(fileId);
+                request.getRequestHeaders().setRange("bytes=" + position + "-" + end);
+                HttpResponse response = request.executeMedia();
+                // a server ignoring the range sends the whole file, which is only where the range is if it starts at 0
+                if (response.getStatusCode() != 206 && position != 0) {
+                    response.disconnect();
+                    throw new RangeNotSupportedException("The server ignored the range request of " + fileId + " (" + response.getStatusCode() + "), download it with a single connection");
+                }
+                try (InputStream in = response.getContent()) {
+                    int read;
+                    while (position <= end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) != -1) {
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                        while (data.hasRemaining())
+                            position += channel.write(data, position);
+                        progress(read);
+                    }
+                }
+                if (position > end)
+                    return;
+                throw new IOException("Range ended early at " + position + " of " + end);
+            } catch (IOException e) {
+                if (attempt >= MAX_RANGE_ATTEMPTS || e instanceof RangeNotSupportedException)
+                    throw e;
+                if (position == before)
+                    Thread.sleep((1L << attempt) * 250);
+            }
+        }
+    }
+
+    private static void closeAfter(Exception error, Closeable... resources) {
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                error.addSuppressed(e);
+            }
+        }
+    }
+
+    private void progress(int read) {
+        int percentage = (int) (downloaded.addAndGet(read) * 100 / size);
+        int last = reported.get();
+        if (percentage > last && reported.compareAndSet(last, percentage))
+            listener.onProgress(percentage);
+    }
+
+    private void finish(AsyncTask<java.io.File> task, FileChannel channel, FileChannel state, Path target, Path part, Exception error) {
+        try {
+            channel.close();
+            state.close();
+            if (error == null)
+                Files.deleteIfExists(part);
+        } catch (IOException e) {
+            if (error == null)
+                error = e;
+        }
+        if (error == null) {
+            listener.onFinish(null);
+            task.complete(target.toFile(), null);
+        } else {
+            listener.onFailed(error);
+            task.complete(null, error);
+        }
+    }
+
+    private static final class RangeNotSupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotSupportedException(String message) {
+            super(message);
+        }
+    }
+}
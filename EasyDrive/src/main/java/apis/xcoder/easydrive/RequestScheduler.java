@@ -0,0 +1,608 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Schedules the HTTP requests of an {@link EasyDrive} instance so that they stay within the drive quota. Every
+ * request made with {@link EasyDrive#drive}, including uploads, downloads and batches, goes through it as an
+ * {@link HttpRequestInitializer}, every attempt of a request waiting for its turn before it is sent:
+ * <ul>
+ *     <li>If set with {@link #setRateLimit(double, int)}, a token bucket limits the rate at which requests are
+ *     sent.</li>
+ *     <li>The number of requests in flight is limited. A request is in flight until the headers of its response are
+ *     received, its content is read outside of the limit so that the streams left open don't hold back the other
+ *     requests. The limit grows slowly while requests succeed and the latency stays close to the best one seen, and
+ *     is halved when the drive reports a quota or server error.</li>
+ *     <li>Quota errors (429 and 403 {@code rateLimitExceeded} / {@code userRateLimitExceeded}) pause all the requests
+ *     for an exponentially growing delay with jitter, after which the failed request is sent again.</li>
+ *     <li>Waiting requests are served by {@link Priority}, so that interactive calls like
+ *     {@link EasyDrive#getName(String)} overtake bulk uploads.</li>
+ * </ul>
+ * The priority of a request is the one of the thread which sends it, see {@link #withPriority(Priority, Executor)}.
+ */
+public class RequestScheduler implements HttpRequestInitializer {
+    private static final ThreadLocal<Priority> PRIORITY = ThreadLocal.withInitial(() -> Priority.NORMAL);
+    private static final ThreadLocal<Attempt> BATCH = new ThreadLocal<>();
+    private static final int MAX_ERROR_LENGTH = 64 * 1024;
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final int[] waiting = new int[Priority.values().length];
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private double ratePerSecond;
+    private double burst = 50;
+    private double tokens = burst;
+    private long refilledAt = System.nanoTime();
+    private int minConcurrency = 1;
+    private int maxConcurrency = 64;
+    private double limit = 8;
+    private int inFlight;
+    private long baseBackoff = TimeUnit.SECONDS.toNanos(1);
+    private long maxBackoff = TimeUnit.SECONDS.toNanos(64);
+    private int throttles;
+    private long pausedUntil;
+    private long decreasedAt = System.nanoTime() - DECREASE_INTERVAL;
+    private double latency = -1;
+    private double bestLatency = Double.MAX_VALUE;
+    private volatile DriveMetrics metrics;
+
+    /**
+     * Sets the rate limit of the requests.
+     *
+     * @param requestsPerSecond The average number of requests per second, 0 for no limit (the default).
+     * @param burst             The number of requests which can be sent at once after a pause, 50 by default.
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+        if (requestsPerSecond < 0 || burst < 1)
+            throw new IllegalArgumentException("Invalid rate limit");
+        lock.lock();
+        try {
+            this.ratePerSecond = requestsPerSecond;
+            this.burst = burst;
+            this.tokens = Math.min(tokens, burst);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the bounds between which the number of requests in flight is adjusted.
+     *
+     * @param min The minimum number of requests in flight, 1 by default.
+     * @param max The maximum number of requests in flight, 64 by default.
+     */
+    public void setConcurrencyLimits(int min, int max) {
+        if (min < 1 || max < min)
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        lock.lock();
+        try {
+            this.minConcurrency = min;
+            this.maxConcurrency = max;
+            this.limit = Math.max(min, Math.min(max, limit));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the pause after a quota error. It doubles with every consecutive quota error, and a random part of up
+     * to half of it is removed so that several clients don't retry at the same time.
+     *
+     * @param base The pause after the first quota error, 1 second by default.
+     * @param max  The maximum pause, 64 seconds by default.
+     * @param unit The unit of the pauses
+     */
+    public void setBackoff(long base, long max, @Nonnull TimeUnit unit) {
+        if (base < 1 || max < base)
+            throw new IllegalArgumentException("Invalid backoff");
+        lock.lock();
+        try {
+            this.baseBackoff = unit.toNanos(base);
+            this.maxBackoff = unit.toNanos(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The current limit of requests in flight
+     */
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests sent and waiting for the headers of their response
+     */
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests waiting to be sent
+     */
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (int waiters : waiting)
+                count += waiters;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The time before a new request could be sent, in nanoseconds, while the requests are paused after a
+     * quota error or the token bucket is empty. 0 if one could be sent now, or as soon as a request in flight ends.
+     */
+    long getDelayNanos() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            if (now < pausedUntil)
+                return pausedUntil - now;
+            if (ratePerSecond > 0 && tokens < 1)
+                return (long) ((1 - tokens) / ratePerSecond * 1e9);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests sent so far
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of requests rejected by the drive due to quota so far
+     */
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * Returns an executor which runs the tasks on the given executor with the given priority, so that the
+     * requests they send are scheduled with it.
+     *
+     * @param priority The priority of the tasks
+     * @param executor The executor to run the tasks on
+     */
+    public static Executor withPriority(@Nonnull Priority priority, @Nonnull Executor executor) {
+        return command -> executor.execute(() -> {
+            Priority previous = PRIORITY.get();
+            PRIORITY.set(priority);
+            try {
+                command.run();
+            } finally {
+                PRIORITY.set(previous);
+            }
+        });
+    }
+
+    /**
+     * Makes every attempt of the request wait for its turn before it is sent, and free its place once the headers of
+     * its response are received or it fails. The requests rejected due to quota are retried, after the handlers
+     * already set on the request (like the credential's, which refreshes the access token).
+     */
+    @Override
+    public void initialize(HttpRequest request) {
+        Attempt attempt = new Attempt();
+        HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(req -> {
+            if (interceptor != null)
+                interceptor.intercept(req);
+            attempt.start(req);
+        });
+        HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+        request.setIOExceptionHandler((req, supportsRetry) -> {
+            attempt.end(req, -1, false, 0, -1);
+            return ioExceptionHandler != null && ioExceptionHandler.handleIOException(req, supportsRetry);
+        });
+        HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+        request.setUnsuccessfulResponseHandler((req, response, supportsRetry) -> {
+            boolean quotaError = isQuotaError(response);
+            // a request of a batch is not sent on its own, its quota error pauses the batch which sends it again
+            if (quotaError && !attempt.started)
+                throttled();
+            attempt.end(req, response, quotaError);
+            // the pause is applied when the request waits for its turn again
+            boolean retry = (handler != null && handler.handleResponse(req, response, supportsRetry))
+                    || (supportsRetry && quotaError);
+            DriveMetrics metrics = this.metrics;
+            if (retry && metrics != null)
+                metrics.recordRetry(typeOf(req.getRequestMethod(), req.getUrl().build()), response.getStatusCode());
+            return retry;
+        });
+        HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+        request.setResponseInterceptor(response -> {
+            // only the successful responses are left, the others were seen by the handler
+            attempt.end(response.getRequest(), response, false);
+            if (responseInterceptor != null)
+                responseInterceptor.interceptResponse(response);
+        });
+    }
+
+    void setMetrics(DriveMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The type of request of the given url, as reported to {@link DriveMetrics}.
+     */
+    static String typeOf(String method, String url) {
+        int query = url.indexOf('?');
+        String path = query < 0 ? url : url.substring(0, query);
+        if (path.contains("/upload/"))
+            return "upload";
+        if (path.contains("/batch"))
+            return "batch";
+        if (query >= 0 && url.indexOf("alt=media", query) >= 0)
+            return "media.download";
+        if (path.contains("/changes"))
+            return "changes";
+        if (path.endsWith("/files"))
+            return method.equals("GET") ? "files.list" : "files.create";
+        if (path.contains("/files/")) {
+            switch (method) {
+                case "GET":
+                    return "files.get";
+                case "DELETE":
+                    return "files.delete";
+                default:
+                    return "files.update";
+            }
+        }
+        return "other";
+    }
+
+    /**
+     * Executes a batch as a single request. The requests it contains are not sent on their own, but they count one
+     * by one in the token bucket: the following requests wait until it is refilled.
+     *
+     * @param batch    The batch to execute
+     * @param requests The number of requests in the batch
+     */
+    void execute(BatchRequest batch, int requests) throws IOException {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            tokens -= requests - 1;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            batch.execute();
+        } finally {
+            // frees the place of an attempt which failed before it was sent, like while its requests were prepared
+            Attempt attempt = BATCH.get();
+            if (attempt != null)
+                attempt.end(null, -1, false, 0, -1);
+        }
+    }
+
+    /**
+     * Reports a quota error which was not seen by the transport, like the one of a request in a batch.
+     */
+    void throttled() {
+        throttled.increment();
+        lock.lock();
+        try {
+            pause(System.nanoTime(), 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The delay in milliseconds before the given attempt of a failed operation, with jitter.
+     */
+    long backoffMillis(int attempt) {
+        long delay = TimeUnit.NANOSECONDS.toMillis(Math.min(maxBackoff, baseBackoff << Math.min(attempt - 1, 20)));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void acquire() throws InterruptedIOException {
+        int priority = PRIORITY.get().ordinal();
+        lock.lock();
+        try {
+            waiting[priority]++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    if (now < pausedUntil) {
+                        changed.awaitNanos(pausedUntil - now);
+                    } else if (inFlight >= (int) limit || hasWaitersBefore(priority)) {
+                        changed.await();
+                    } else if (ratePerSecond > 0 && tokens < 1) {
+                        changed.awaitNanos((long) ((1 - tokens) / ratePerSecond * 1e9) + 1);
+                    } else {
+                        tokens--;
+                        inFlight++;
+                        return;
+                    }
+                }
+            } finally {
+                waiting[priority]--;
+                // the waiters of lower priority may go now
+                changed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send the request");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adapts the limits to the response of a request, once its headers are received.
+     */
+    private void record(int statusCode, boolean quotaError, long retryAfter, long elapsed) {
+        requests.increment();
+        if (quotaError)
+            throttled.increment();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (quotaError) {
+                pause(now, retryAfter);
+            } else if (statusCode < 0 || statusCode >= 500) {
+                decrease(now);
+            } else if (statusCode < 400) {
+                throttles = 0;
+                if (elapsed >= 0) {
+                    latency = latency < 0 ? elapsed : latency * 0.9 + elapsed * 0.1;
+                    bestLatency = Math.min(bestLatency, latency);
+                }
+                // additive increase, about one more request per round of successful requests
+                if (latency < 0 || latency <= bestLatency * 2)
+                    limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees the place of a request, once the headers of its response are received or it failed.
+     */
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pause(long now, long retryAfter) {
+        throttles++;
+        long delay = Math.min(maxBackoff, baseBackoff << Math.min(throttles - 1, 20));
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        pausedUntil = Math.max(pausedUntil, now + Math.max(jittered, retryAfter));
+        decrease(now);
+    }
+
+    private void decrease(long now) {
+        // the requests already in flight when the limit was lowered are likely to fail as well
+        if (now - decreasedAt < DECREASE_INTERVAL)
+            return;
+        decreasedAt = now;
+        limit = Math.max(minConcurrency, limit / 2);
+    }
+
+    private void refill(long now) {
+        if (ratePerSecond > 0)
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * ratePerSecond);
+        else
+            tokens = burst;
+        refilledAt = now;
+    }
+
+    private boolean hasWaitersBefore(int priority) {
+        for (int i = 0; i < priority; i++) {
+            if (waiting[i] > 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isQuotaError(HttpResponse response) throws IOException {
+        int statusCode = response.getStatusCode();
+        if (statusCode == 429)
+            return true;
+        if (statusCode != 403)
+            return false;
+        // the reason is only in the body, which is read ahead and kept for the caller
+        InputStream in = response.getContent();
+        if (in == null || !in.markSupported())
+            return false;
+        in.mark(MAX_ERROR_LENGTH);
+        String text;
+        try {
+            text = new String(in.readNBytes(MAX_ERROR_LENGTH), StandardCharsets.UTF_8);
+        } finally {
+            in.reset();
+        }
+        return text.contains("userRateLimitExceeded") || text.contains("rateLimitExceeded");
+    }
+
+    private static long retryAfter(HttpResponse response) {
+        String value = response.getHeaders().getFirstHeaderStringValue("Retry-After");
+        if (value == null)
+            return 0;
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The priority of a request. Waiting requests are sent in this order.
+     */
+    public enum Priority {
+        /**
+         * Calls whose result is awaited by a user, like getting a name or an id.
+         */
+        INTERACTIVE,
+        /**
+         * The default priority
+         */
+        NORMAL,
+        /**
+         * Long-running transfers and bulk operations, like uploads, downloads, syncs and batches.
+         */
+        BULK
+    }
+
+    /**
+     * The attempt of a request being sent, from its turn to the headers of its response. A request is sent by one
+     * thread at a time, an attempt after the other.
+     */
+    private final class Attempt {
+        private boolean started;
+        private boolean withContent;
+        private long startedAt;
+
+        void start(HttpRequest request) throws InterruptedIOException {
+            if (started)
+                end(request, -1, false, 0, -1);
+            boolean batch = typeOf(request.getRequestMethod(), request.getUrl().build()).equals("batch");
+            // the requests of a batch are intercepted while it is prepared, they are only sent within it
+            if (!batch && BATCH.get() != null)
+                return;
+            HttpContent content = request.getContent();
+            DriveMetrics metrics = RequestScheduler.this.metrics;
+            if (metrics != null && content != null && !(content instanceof CountingContent))
+                request.setContent(new CountingContent(content, metrics));
+            acquire();
+            started = true;
+            withContent = content != null;
+            startedAt = System.nanoTime();
+            if (batch)
+                BATCH.set(this);
+        }
+
+        void end(HttpRequest request, HttpResponse response, boolean quotaError) {
+            int statusCode = response.getStatusCode();
+            Long length = response.getHeaders().getContentLength();
+            end(request, statusCode, quotaError, quotaError ? retryAfter(response) : 0, length == null ? -1 : length);
+        }
+
+        void end(HttpRequest request, int statusCode, boolean quotaError, long retryAfter, long contentLength) {
+            if (!started)
+                return;
+            started = false;
+            if (BATCH.get() == this)
+                BATCH.remove();
+            long elapsed = System.nanoTime() - startedAt;
+            // the latency of uploads depends on their size, it says nothing about the load of the server
+            record(statusCode, quotaError, retryAfter, withContent ? -1 : elapsed);
+            release();
+            DriveMetrics metrics = RequestScheduler.this.metrics;
+            if (metrics != null) {
+                if (contentLength > 0)
+                    metrics.recordBytesReceived(contentLength);
+                if (request != null)
+                    metrics.recordRequest(typeOf(request.getRequestMethod(), request.getUrl().build()), statusCode, elapsed);
+            }
+        }
+    }
+
+    private static final class CountingContent implements HttpContent {
+        private final HttpContent content;
+        private final DriveMetrics metrics;
+
+        CountingContent(HttpContent content, DriveMetrics metrics) {
+            this.content = content;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return content.getLength();
+        }
+
+        @Override
+        public String getType() {
+            return content.getType();
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return content.retrySupported();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            content.writeTo(new CountingOutputStream(out, metrics));
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final DriveMetrics metrics;
+
+        CountingOutputStream(OutputStream out, DriveMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.recordBytesSent(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            metrics.recordBytesSent(length);
+        }
+    }
+}
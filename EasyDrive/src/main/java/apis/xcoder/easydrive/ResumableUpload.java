@@ -0,0 +1,364 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.MethodOverride;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+
+import javax.annotation.Nullable;
+
+/**
+ * An upload of a stream to the drive using the resumable upload protocol. The stream is sent in chunks; when a
+ * chunk fails, only that chunk is sent again. If a session directory and a resume token are set, and the length of
+ * the stream is known, the session is saved on the disk so that the upload can be continued after the application
+ * restarts, by uploading the same stream again with the same token.
+ * <p>
+ * The length of the stream can be unknown. The chunk size is either fixed or, by default, adapted to the speed of
+ * the network. Use {@link #getThroughput()} and {@link #getBytesUploaded()} to monitor the upload while it runs.
+ */
+public class ResumableUpload {
+    static final int CHUNK_GRANULARITY = 256 * 1024;
+    private static final int MIN_ADAPTIVE_CHUNK = 4 * CHUNK_GRANULARITY;
+    private static final int MAX_ADAPTIVE_CHUNK = 256 * CHUNK_GRANULARITY;
+    private static final int INITIAL_ADAPTIVE_CHUNK = 32 * CHUNK_GRANULARITY;
+    private static final long TARGET_CHUNK_NANOS = 5_000_000_000L;
+    private static final int MAX_CHUNK_ATTEMPTS = 6;
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    private final Drive drive;
+    private final String name;
+    private final String mimeType;
+    private final String folderId;
+    private final PushbackInputStream in;
+    private final long length;
+    private final int fixedChunkSize;
+    private final Path sessionFile;
+    private final EasyDrive.ProgressListener listener;
+    private volatile long bytesUploaded;
+    private volatile double throughput;
+    private volatile String sessionUri;
+    private AsyncTask<String> task;
+
+    ResumableUpload(Drive drive, String name, String mimeType, String folderId, InputStream in, long length, int chunkSize, @Nullable Path sessionDirectory, @Nullable String resumeToken, @Nullable EasyDrive.ProgressListener listener) {
+        if (chunkSize % CHUNK_GRANULARITY != 0)
+            throw new IllegalArgumentException("Chunk size must be a multiple of " + CHUNK_GRANULARITY);
+        this.drive = drive;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.folderId = folderId == null ? "root" : folderId;
+        this.in = new PushbackInputStream(in, 1);
+        this.length = length;
+        this.fixedChunkSize = chunkSize;
+        // a stream of unknown length, or without a token, can't be told apart from another one with the same name
+        this.sessionFile = sessionDirectory == null || resumeToken == null || length < 0 ? null
+                : sessionDirectory.resolve(sessionKey(resumeToken) + ".session");
+        this.listener = listener;
+    }
+
+    /**
+     * @return The task of the upload, with the id of the uploaded file.
+     */
+    public AsyncTask<String> getTask() {
+        return task;
+    }
+
+    void setTask(AsyncTask<String> task) {
+        this.task = task;
+    }
+
+    /**
+     * @return The number of bytes acknowledged by the server so far.
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * @return The current upload speed in bytes per second, 0 until the first chunk is sent.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return The URI of the upload session, null if not yet started.
+     */
+    @Nullable
+    public String getSessionUri() {
+        return sessionUri;
+    }
+
+    /**
+     * Runs the upload on the calling thread.
+     *
+     * @param fileId The id of the file to update, null to create a new file.
+     * @return The metadata of the uploaded file
+     */
+    File run(@Nullable String fileId) throws IOException {
+        try {
+            File file = upload(fileId);
+            if (sessionFile != null)
+                Files.deleteIfExists(sessionFile);
+            if (listener != null)
+                listener.onFinish(file.getId());
+            return file;
+        } catch (IOException | RuntimeException e) {
+            if (listener != null)
+                listener.onFailed(e);
+            throw e;
+        }
+    }
+
+    private File upload(String fileId) throws IOException {
+        long offset = 0;
+        sessionUri = loadSession();
+        if (sessionUri != null) {
+            HttpResponse status = resumeStatus();
+            int code = status.getStatusCode();
+            if (code == 200 || code == 201)
+                return status.parseAs(File.class);
+            else if (code == STATUS_RESUME_INCOMPLETE) {
+                offset = committedOffset(status);
+                status.disconnect();
+                in.skipNBytes(offset);
+            } else {
+                status.disconnect();
+                sessionUri = null;
+            }
+        }
+        if (sessionUri == null) {
+            sessionUri = startSession(fileId);
+            saveSession();
+        }
+        bytesUploaded = offset;
+
+        int chunkSize = fixedChunkSize == 0 ? INITIAL_ADAPTIVE_CHUNK : fixedChunkSize;
+        byte[] buffer = new byte[chunkSize];
+        while (true) {
+            if (buffer.length < chunkSize)
+                buffer = new byte[chunkSize];
+            int read = in.readNBytes(buffer, 0, chunkSize);
+            boolean last;
+            if (length >= 0) {
+                if (read < chunkSize && offset + read < length)
+                    throw new EOFException("The stream ended after " + (offset + read) + " of " + length + " bytes");
+                last = offset + read >= length;
+            }
+            else {
+                int next = read < chunkSize ? -1 : in.read();
+                last = next == -1;
+                if (!last)
+                    in.unread(next);
+            }
+            long total = last ? offset + read : length;
+
+            long start = System.nanoTime();
+            File file = sendChunk(buffer, read, offset, total);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            offset += read;
+            bytesUploaded = offset;
+            double speed = read * 1e9 / elapsed;
+            throughput = throughput == 0 ? speed : throughput * 0.7 + speed * 0.3;
+            if (listener != null && length > 0)
+                listener.onProgress((int) (offset * 100 / length));
+            if (file != null)
+                return file;
+            if (last)
+                throw new IOException("Upload completed but the server did not return the file");
+
+            if (fixedChunkSize == 0) {
+                if (elapsed < TARGET_CHUNK_NANOS / 2 && chunkSize < MAX_ADAPTIVE_CHUNK)
+                    chunkSize *= 2;
+                else if (elapsed > TARGET_CHUNK_NANOS * 2 && chunkSize > MIN_ADAPTIVE_CHUNK)
+                    chunkSize /= 2;
+            }
+        }
+    }
+
+    /**
+     * Sends the chunk, retrying only the part of it that the server has not received. After a failure, the server is
+     * asked what it received before the rest is sent again; this query is retried like the chunk.
+     *
+     * @return The uploaded file if this was the last chunk, null otherwise.
+     */
+    private File sendChunk(byte[] buffer, int count, long offset, long total) throws IOException {
+        boolean last = offset + count == total;
+        int sent = 0;
+        boolean query = false;
+        for (int failures = 0; ; ) {
+            HttpResponse response;
+            try {
+                if (query) {
+                    response = queryStatus();
+                } else {
+                    String range = count == sent
+                            ? "bytes */" + total
+                            : "bytes " + (offset + sent) + "-" + (offset + count - 1) + "/" + (total < 0 ? "*" : total);
+                    HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), new ByteArrayContent(null, buffer, sent, count - sent));
+                    request.getHeaders().setContentRange(range);
+                    response = execute(request);
+                }
+            } catch (IOException e) {
+                if (++failures >= MAX_CHUNK_ATTEMPTS)
+                    throw e;
+                sleep(failures);
+                query = true;
+                continue;
+            }
+
+            int code = response.getStatusCode();
+            if (code == 200 || code == 201)
+                return response.parseAs(File.class);
+            if (code == STATUS_RESUME_INCOMPLETE) {
+                long committed = committedOffset(response);
+                response.disconnect();
+                if (committed < offset)
+                    throw new IOException("Server lost previously uploaded data");
+                int received = (int) Math.min(count, committed - offset);
+                // the last chunk is completed by an empty request, which returns the file
+                if (received == count && !last)
+                    return null;
+                // a chunk sent in full but not received is a failure, not an answer to a query
+                if (!query && received <= sent && ++failures >= MAX_CHUNK_ATTEMPTS)
+                    throw new IOException("Upload failed, the server did not receive the chunk at " + (offset + sent));
+                sent = received;
+                query = false;
+                continue;
+            }
+            String error = response.parseAsString();
+            if (code == 404 || code == 410)
+                deleteSession();
+            if (!isRetryable(code) || ++failures >= MAX_CHUNK_ATTEMPTS)
+                throw new IOException("Upload failed with " + code + ": " + error);
+            sleep(failures);
+            query = true;
+        }
+    }
+
+    private String startSession(String fileId) throws IOException {
+        File body = new File().setName(name).setMimeType(mimeType);
+        String url = drive.getRootUrl() + "upload/" + drive.getServicePath() + "files";
+        HttpRequest request;
+        if (fileId == null) {
+            body.setParents(Collections.singletonList(folderId));
+            request = drive.getRequestFactory().buildPostRequest(new GenericUrl(url), new JsonHttpContent(drive.getJsonFactory(), body));
+        } else {
+            request = drive.getRequestFactory().buildPatchRequest(new GenericUrl(url + "/" + fileId), new JsonHttpContent(drive.getJsonFactory(), body));
+            // the default transport can't send PATCH
+            new MethodOverride().intercept(request);
+        }
+
+        request.getUrl().set("uploadType", "resumable");
+        request.getUrl().set("fields", MetadataIndex.FIELDS);
+        request.getHeaders().set("X-Upload-Content-Type", mimeType);
+        if (length >= 0)
+            request.getHeaders().set("X-Upload-Content-Length", length);
+        HttpResponse response = execute(request);
+        if (!response.isSuccessStatusCode())
+            throw new IOException("Could not start the upload session: " + response.getStatusCode() + " " + response.parseAsString());
+        String location = response.getHeaders().getLocation();
+        response.disconnect();
+        if (location == null)
+            throw new IOException("Server did not return an upload session");
+        return location;
+    }
+
+    private HttpResponse queryStatus() throws IOException {
+        HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+        request.getHeaders().setContentRange("bytes */" + (length < 0 ? "*" : length));
+        return execute(request);
+    }
+
+    /**
+     * Queries the status of a saved session, retrying the network errors and the server errors.
+     */
+    private HttpResponse resumeStatus() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                HttpResponse status = queryStatus();
+                if (!isRetryable(status.getStatusCode()) || attempt >= MAX_CHUNK_ATTEMPTS)
+                    return status;
+                status.disconnect();
+            } catch (IOException e) {
+                if (attempt >= MAX_CHUNK_ATTEMPTS)
+                    throw e;
+            }
+            sleep(attempt);
+        }
+    }
+
+    private HttpResponse execute(HttpRequest request) throws IOException {
+        request.setFollowRedirects(false);
+        request.setThrowExceptionOnExecuteError(false);
+        request.setParser(new JsonObjectParser(drive.getJsonFactory()));
+        return request.execute();
+    }
+
+    private static long committedOffset(HttpResponse response) {
+        String range = response.getHeaders().getRange();
+        if (range == null)
+            return 0;
+        return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code == 403 || code >= 500;
+    }
+
+    private static void sleep(int attempt) throws IOException {
+        try {
+            Thread.sleep(Math.min(32_000, (1L << attempt) * 250));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted", e);
+        }
+    }
+
+    private String loadSession() throws IOException {
+        if (sessionFile == null || !Files.exists(sessionFile))
+            return null;
+        String uri = Files.readString(sessionFile).trim();
+        return uri.isEmpty() ? null : uri;
+    }
+
+    private void saveSession() throws IOException {
+        if (sessionFile != null) {
+            Files.createDirectories(sessionFile.getParent());
+            Files.writeString(sessionFile, sessionUri);
+        }
+    }
+
+    private void deleteSession() throws IOException {
+        if (sessionFile != null)
+            Files.deleteIfExists(sessionFile);
+    }
+
+    private String sessionKey(String resumeToken) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest((folderId + "/" + name + "/" + length + "/" + resumeToken).getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : hash)
+                builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link EasyDrive} spreading its requests over several accounts, to go beyond the quota of a single one. Every
+ * account has its own Drive service, connection pool and {@link RequestScheduler}, and each call is sent through
+ * the account the least busy at the time: the one with the fewest operations and requests per unit of concurrency,
+ * avoiding the accounts paused after a quota error or out of rate tokens until they can send again.
+ * <p>
+ * The bulk operations, like {@link #uploadAll(java.io.File, String, ProgressListener)}, {@link #sync} or
+ * {@link #deleteRecursively(String)}, spread every file they upload or delete, and the folders the uploads list, not
+ * the operation as a whole. The lookups and folder creations made at the same time through different accounts are
+ * still coalesced, and the settings and caches apply to all the accounts.
+ * <p>
+ * All the accounts must have access to the same files, for example as members of the same shared drive or of a
+ * folder shared with all of them; the files created are owned by the account which created them. The methods not
+ * related to a single file or call, like {@link #getScheduler()}, are those of the first account.
+ */
+public class ShardedEasyDrive extends EasyDrive {
+    private final List<Shard> shards;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Initialize one Drive service per account, each on a {@link DriveTransport} of its own. This do not blocks the
+     * thread, the credentials are checked at the first request of each account.
+     *
+     * @param accounts The accounts to spread the requests over, at least one
+     */
+    public ShardedEasyDrive(@Nonnull Collection<Account> accounts) {
+        this(create(accounts));
+    }
+
+    /**
+     * @param shards The instances to spread the requests over. Only their Drive service and scheduler are used.
+     */
+    ShardedEasyDrive(List<EasyDrive> shards) {
+        super(shards.get(0), null);
+        List<Shard> list = new ArrayList<>(shards.size());
+        for (EasyDrive shard : shards)
+            list.add(new Shard(new EasyDrive(shard, this)));
+        this.shards = Collections.unmodifiableList(list);
+    }
+
+    private static List<EasyDrive> create(Collection<Account> accounts) {
+        if (accounts.isEmpty())
+            throw new IllegalArgumentException("No accounts given");
+        List<EasyDrive> shards = new ArrayList<>(accounts.size());
+        for (Account account : accounts)
+            shards.add(new EasyDrive(new DriveTransport(), account.clientId, account.clientSecret, account.refreshToken));
+        return shards;
+    }
+
+    /**
+     * @return The instance of every account, in the order they were given, to monitor them. They must not be
+     * configured or used directly.
+     */
+    public List<EasyDrive> getShards() {
+        List<EasyDrive> list = new ArrayList<>(shards.size());
+        for (Shard shard : shards)
+            list.add(shard.easyDrive);
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return The least busy account. The search starts from a different account every time, so that the calls
+     * made together, before any of them reaches its scheduler, go to different accounts.
+     */
+    private Shard pick() {
+        int start = Math.floorMod(next.getAndIncrement(), shards.size());
+        Shard best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get((start + i) % shards.size());
+            double load = shard.load();
+            if (load < bestLoad) {
+                best = shard;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private <T> AsyncTask<T> route(Function<EasyDrive, AsyncTask<T>> operation) {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        AsyncTask<T> task;
+        try {
+            task = operation.apply(shard.easyDrive);
+        } catch (RuntimeException e) {
+            shard.pending.decrementAndGet();
+            throw e;
+        }
+        task.whenComplete((value, error) -> shard.pending.decrementAndGet());
+        return task;
+    }
+
+    private <T> T call(Call<T> call) throws IOException {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        try {
+            return call.call(shard.easyDrive);
+        } finally {
+            shard.pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void setMetrics(@Nullable DriveMetrics metrics) {
+        for (Shard shard : shards)
+            shard.easyDrive.setMetrics(metrics);
+        super.setMetrics(metrics);
+        if (metrics != null) {
+            metrics.registerGauge("requests.inFlight", () -> sum(shard -> shard.getScheduler().getInFlightCount()));
+            metrics.registerGauge("requests.waiting", () -> sum(shard -> shard.getScheduler().getWaitingCount()));
+            metrics.registerGauge("requests.concurrencyLimit", () -> sum(shard -> shard.getScheduler().getConcurrencyLimit()));
+            metrics.registerGauge("operations.inFlight", () -> getOperationsInFlight() + sum(EasyDrive::getOperationsInFlight));
+        }
+    }
+
+    private long sum(Function<EasyDrive, Number> gauge) {
+        long sum = 0;
+        for (Shard shard : shards)
+            sum += gauge.apply(shard.easyDrive).longValue();
+        return sum;
+    }
+
+    @Override
+    public void setExecutor(@Nullable Executor executor) {
+        super.setExecutor(executor);
+        for (Shard shard : shards)
+            shard.easyDrive.setExecutor(executor);
+    }
+
+    @Override
+    public void setBufferPool(@Nullable BufferPool pool) {
+        super.setBufferPool(pool);
+        for (Shard shard : shards)
+            shard.easyDrive.setBufferPool(pool);
+    }
+
+    @Override
+    public void setContentCache(@Nullable ContentCache cache) {
+        super.setContentCache(cache);
+        for (Shard shard : shards)
+            shard.easyDrive.setContentCache(cache);
+    }
+
+    @Override
+    public void setFileIdCache(@Nullable FileIdCache cache) {
+        super.setFileIdCache(cache);
+        for (Shard shard : shards)
+            shard.easyDrive.setFileIdCache(cache);
+    }
+
+    @Override
+    public void setMetadataIndex(@Nullable MetadataIndex index) {
+        super.setMetadataIndex(index);
+        for (Shard shard : shards)
+            shard.easyDrive.setMetadataIndex(index);
+    }
+
+    @Override
+    public void setMaxConcurrentBatches(int maxConcurrentBatches) {
+        super.setMaxConcurrentBatches(maxConcurrentBatches);
+        for (Shard shard : shards)
+            shard.easyDrive.setMaxConcurrentBatches(maxConcurrentBatches);
+    }
+
+    @Override
+    public void setMaxConcurrentListings(int maxConcurrentListings) {
+        super.setMaxConcurrentListings(maxConcurrentListings);
+        for (Shard shard : shards)
+            shard.easyDrive.setMaxConcurrentListings(maxConcurrentListings);
+    }
+
+    @Override
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        super.setMaxConcurrentUploads(maxConcurrentUploads);
+        for (Shard shard : shards)
+            shard.easyDrive.setMaxConcurrentUploads(maxConcurrentUploads);
+    }
+
+    @Override
+    public void setUploadChunkSize(int chunkSize) {
+        super.setUploadChunkSize(chunkSize);
+        for (Shard shard : shards)
+            shard.easyDrive.setUploadChunkSize(chunkSize);
+    }
+
+    @Override
+    public void setUploadSessionDirectory(@Nullable java.io.File directory) {
+        super.setUploadSessionDirectory(directory);
+        for (Shard shard : shards)
+            shard.easyDrive.setUploadSessionDirectory(directory);
+    }
+
+    @Override
+    public AsyncTask<Integer> prewarmFileIdCache(@Nullable String folderId) {
+        return route(shard -> shard.prewarmFileIdCache(folderId));
+    }
+
+    @Override
+    String uploadFile(java.io.File file, String folderId, String fileId) throws IOException {
+        return call(shard -> shard.uploadFile(file, folderId, fileId));
+    }
+
+    @Override
+    public AsyncTask<UploadResult> uploadFileIfChanged(@Nonnull java.io.File file, @Nullable String folderId) {
+        return route(shard -> shard.uploadFileIfChanged(file, folderId));
+    }
+
+    @Override
+    public ResumableUpload uploadResumable(@Nonnull String name, @Nonnull InputStream in, long length, @Nullable String folderId, @Nullable String resumeToken, @Nullable ProgressListener listener) {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        ResumableUpload upload = shard.easyDrive.uploadResumable(name, in, length, folderId, resumeToken, listener);
+        upload.getTask().whenComplete((value, error) -> shard.pending.decrementAndGet());
+        return upload;
+    }
+
+    @Override
+    String createNewFolder(String name, String folderId) throws IOException {
+        return call(shard -> shard.createNewFolder(name, folderId));
+    }
+
+    @Override
+    public AsyncTask<String> updateFile(@Nonnull String fileId, @Nonnull java.io.File updatedFile) {
+        return route(shard -> shard.updateFile(fileId, updatedFile));
+    }
+
+    @Override
+    public AsyncTask<Void> updateFile(@Nonnull String fileId, @Nonnull String content) {
+        return route(shard -> shard.updateFile(fileId, content));
+    }
+
+    @Override
+    public AsyncTask<String> createTxtFile(@Nonnull String name, @Nonnull String content, @Nullable String folderId) {
+        return route(shard -> shard.createTxtFile(name, content, folderId));
+    }
+
+    @Override
+    public AsyncTask<InputStream> getAsInputStream(String id) {
+        return route(shard -> shard.getAsInputStream(id));
+    }
+
+    @Override
+    public void download(@Nonnull String fileId, @Nonnull String directory, @Nonnull ProgressListener listener) {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        try {
+            shard.easyDrive.download(fileId, directory, listener);
+        } finally {
+            shard.pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public AsyncTask<java.io.File> download(@Nonnull String fileId, @Nonnull String directory, int connections, @Nonnull ProgressListener listener) {
+        return route(shard -> shard.download(fileId, directory, connections, listener));
+    }
+
+    @Override
+    public AsyncTask<byte[]> getContent(@Nonnull String fileId) {
+        return route(shard -> shard.getContent(fileId));
+    }
+
+    @Override
+    public AsyncTask<Long> readContent(@Nonnull String fileId, @Nonnull ContentCallback callback, @Nullable ProgressListener listener) {
+        return route(shard -> shard.readContent(fileId, callback, listener));
+    }
+
+    @Override
+    public AsyncTask<DriveChannel> openChannel(@Nonnull String fileId, @Nonnull DriveChannel.Options options) {
+        return route(shard -> shard.openChannel(fileId, options));
+    }
+
+    @Override
+    public AsyncTask<Long> walkTree(@Nonnull String folderId, @Nonnull String fields, @Nonnull TreeWalker.Visitor visitor) {
+        return route(shard -> shard.walkTree(folderId, fields, visitor));
+    }
+
+    @Override
+    public AsyncTask<String> getName(String id) {
+        return route(shard -> shard.getName(id));
+    }
+
+    @Override
+    public AsyncTask<Void> delete(@Nonnull String fileId) {
+        return route(shard -> shard.delete(fileId));
+    }
+
+    @Override
+    public AsyncTask<BatchResult<Void>> delete(@Nonnull Collection<String> fileIds) {
+        return route(shard -> shard.delete(fileIds));
+    }
+
+    @Override
+    BatchResult<Void> deleteNow(Collection<String> fileIds) {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        try {
+            return shard.easyDrive.deleteNow(fileIds);
+        } finally {
+            shard.pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public AsyncTask<BatchResult<File>> getMetadata(@Nonnull Collection<String> fileIds, @Nonnull String fields) {
+        return route(shard -> shard.getMetadata(fileIds, fields));
+    }
+
+    @Override
+    BatchResult<File> getMetadataNow(Collection<String> fileIds, String fields) {
+        Shard shard = pick();
+        shard.pending.incrementAndGet();
+        try {
+            return shard.easyDrive.getMetadataNow(fileIds, fields);
+        } finally {
+            shard.pending.decrementAndGet();
+        }
+    }
+
+    @Override
+    public AsyncTask<BatchResult<String>> createFolders(@Nonnull Collection<String> names, @Nullable String folderId) {
+        return route(shard -> shard.createFolders(names, folderId));
+    }
+
+    @Override
+    String findFileId(String fileName, String folderId) throws IOException {
+        return call(shard -> shard.findFileId(fileName, folderId));
+    }
+
+    @Override
+    Drive driveFor(@Nullable String folderId) {
+        return pick().easyDrive.drive;
+    }
+
+    @Override
+    public FileIterator iterateFiles(@Nonnull String folderId, int pageSize, @Nonnull String fields) {
+        return pick().easyDrive.iterateFiles(folderId, pageSize, fields);
+    }
+
+    /**
+     * The credentials of an account
+     */
+    public static final class Account {
+        final String clientId;
+        final String clientSecret;
+        final String refreshToken;
+
+        /**
+         * @param clientId     Your clientID for the API
+         * @param clientSecret Your clientSecret for the API
+         * @param refreshToken The refreshToken of the account
+         */
+        public Account(@Nonnull String clientId, @Nonnull String clientSecret, @Nonnull String refreshToken) {
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
+            this.refreshToken = refreshToken;
+        }
+    }
+
+    private interface Call<T> {
+        T call(EasyDrive shard) throws IOException;
+    }
+
+    private static final class Shard {
+        final EasyDrive easyDrive;
+        /**
+         * The operations sent through this account and not finished yet
+         */
+        final AtomicInteger pending = new AtomicInteger();
+
+        Shard(EasyDrive easyDrive) {
+            this.easyDrive = easyDrive;
+        }
+
+        /**
+         * @return The operations or the requests of the account, whichever are more, per unit of concurrency, plus
+         * the seconds before it can send a request again.
+         */
+        double load() {
+            RequestScheduler scheduler = easyDrive.getScheduler();
+            int busy = Math.max(pending.get(), scheduler.getInFlightCount() + scheduler.getWaitingCount());
+            return (double) busy / Math.max(1, scheduler.getConcurrencyLimit()) + scheduler.getDelayNanos() / 1e9;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package apis.xcoder.easydrive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical calls made at the same time: while the call for a key runs, the other callers asking for the
+ * same key wait for it and share its result (or its exception) instead of making the same call again. Nothing is
+ * kept once the call is done, the next caller makes a new call.
+ *
+ * @param <K> The type of the keys identifying the calls
+ * @param <V> The type of the results
+ */
+final class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * Makes the call, or waits for the same call already running. This method blocks.
+     *
+     * @return The result of the call, which can be null.
+     */
+    V run(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> running = calls.get(key);
+        if (running == null) {
+            CompletableFuture<V> created = new CompletableFuture<>();
+            running = calls.putIfAbsent(key, created);
+            if (running == null) {
+                try {
+                    V value = call.call();
+                    created.complete(value);
+                    return value;
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    calls.remove(key, created);
+                }
+            }
+        }
+
+        shared.increment();
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return The number of calls which shared the result of another one
+     */
+    long getSharedCount() {
+        return shared.sum();
+    }
+
+    interface Call<V> {
+        V call() throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package apis.xcoder.easydrive;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The executor on which {@link AsyncTask}s are run. It wraps any {@link Executor} and keeps track of how many
+ * tasks are waiting in the queue and how many are currently running, so that the load of the library can be
+ * observed at any time.
+ * <p>
+ * Use {@link #bounded(int, int)} for a fixed size pool, {@link #virtual()} for a virtual-thread-per-task executor
+ * (requires java 21+) or {@link #wrap(Executor)} to run the tasks on your own executor.
+ */
+public final class TaskExecutor implements Executor {
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    private final Executor delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+
+    private TaskExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Creates an executor backed by a pool of at-most {@code threads} threads and a queue of {@code queueCapacity}
+     * pending tasks. When the queue is full, the task is run on the thread which submitted it, which slows down the
+     * producer instead of growing the memory without limit. Idle threads are released after a few seconds.
+     *
+     * @param threads       The maximum number of threads of the pool
+     * @param queueCapacity The maximum number of tasks waiting for a thread
+     * @return The bounded executor
+     */
+    public static TaskExecutor bounded(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("threads and queueCapacity must be positive");
+
+        int pool = poolCount.incrementAndGet();
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = runnable -> new Thread(runnable, "EasyDrive-" + pool + "-worker-" + threadCount.incrementAndGet());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 2, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return new TaskExecutor(executor);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are cheap, so thousands of
+     * tasks blocked on network calls do not hold thousands of platform threads.
+     *
+     * @return The virtual thread executor
+     * @throws UnsupportedOperationException if the running JVM do not support virtual threads (java 21 and above).
+     */
+    public static TaskExecutor virtual() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new TaskExecutor((ExecutorService) method.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads requires java 21 or above", e);
+        }
+    }
+
+    /**
+     * Wraps an executor so that its queue and active tasks can be observed.
+     *
+     * @param executor The executor to run the tasks on.
+     * @return The wrapped executor, or the same if it is already a {@link TaskExecutor}
+     */
+    public static TaskExecutor wrap(@Nonnull Executor executor) {
+        return executor instanceof TaskExecutor ? (TaskExecutor) executor : new TaskExecutor(executor);
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        queued.incrementAndGet();
+        Runnable task = () -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        };
+        try {
+            delegate.execute(task);
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of tasks submitted but not yet started.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return The number of tasks currently running.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return The total number of tasks finished so far.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Shuts down the underlying executor if it is an {@link ExecutorService}. Already submitted tasks are still run.
+     */
+    public void shutdown() {
+        if (delegate instanceof ExecutorService)
+            ((ExecutorService) delegate).shutdown();
+    }
+}
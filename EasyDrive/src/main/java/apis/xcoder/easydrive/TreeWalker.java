@@ -0,0 +1,145 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Walks a folder tree concurrently. Folders waiting to be listed are shared by a bounded number of workers; a
+ * worker that finishes a folder pushes its sub-folders on the top of the queue and any idle worker picks them up.
+ * At-most {@code maxInFlight} folders are listed at the same time.
+ * <p>
+ * Every file and folder found is passed to the {@link Visitor} as soon as its page is received, nothing is kept in
+ * memory except the ids of the folders not yet listed. That queue is not bounded: its size is that of the frontier
+ * of the walk. Since sub-folders are listed depth first, it holds about the sub-folders of the folders being listed
+ * and of their ancestors, which is small for deep trees but includes every sub-folder of a folder with many of them.
+ * <p>
+ * The executor may run a worker on the thread which submits it, as the default one does under
+ * {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy} when its queue is full. A walk started then is
+ * listed on the calling thread. A worker which starts another this way while listing a folder does not list the
+ * sub-folders recursively on its stack, it leaves them in the queue and lists them after the current folder.
+ */
+public class TreeWalker {
+    static final String FOLDER_MIME = "application/vnd.google-apps.folder";
+    private final Drive drive;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final String fields;
+    private final Visitor visitor;
+    private final ConcurrentLinkedDeque<String> folders = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicLong visited = new AtomicLong();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final AsyncTask<Long> task = new AsyncTask<>();
+    private final ThreadLocal<Boolean> working = new ThreadLocal<>();
+
+    TreeWalker(Drive drive, Executor executor, int maxInFlight, String fields, Visitor visitor) {
+        this.drive = drive;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        Set<String> requested = new LinkedHashSet<>(Arrays.asList(fields.split(",")));
+        requested.add("id");
+        requested.add("mimeType");
+        this.fields = "nextPageToken,files(" + String.join(",", requested) + ")";
+        this.visitor = visitor;
+    }
+
+    AsyncTask<Long> walk(String folderId) {
+        push(folderId);
+        return task;
+    }
+
+    private void push(String folderId) {
+        pending.incrementAndGet();
+        folders.push(folderId);
+        spawnWorkers();
+    }
+
+    private void spawnWorkers() {
+        while (!folders.isEmpty() && !finished.get()) {
+            int running = workers.get();
+            if (running >= maxInFlight)
+                return;
+            if (workers.compareAndSet(running, running + 1))
+                executor.execute(this::work);
+        }
+    }
+
+    private void work() {
+        if (working.get() != null) {
+            // run inline by a worker of this walk, which takes the folder from the queue once done with its own
+            workers.decrementAndGet();
+            return;
+        }
+        working.set(Boolean.TRUE);
+        try {
+            String folder;
+            while (!finished.get() && (folder = folders.poll()) != null) {
+                try {
+                    list(folder);
+                } catch (Exception e) {
+                    fail(e);
+                    return;
+                }
+                if (pending.decrementAndGet() == 0 && finished.compareAndSet(false, true))
+                    task.complete(visited.get(), null);
+            }
+        } finally {
+            working.remove();
+        }
+        workers.decrementAndGet();
+        // a folder may have been pushed after our last poll but before we left
+        spawnWorkers();
+    }
+
+    private void list(String folder) throws Exception {
+        String pageToken = null;
+        do {
+            FileList list = drive.files().list()
+                    .setQ("'" + folder + "' in parents and trashed = false")
+                    .setFields(fields)
+                    .setPageSize(1000)
+                    .setPageToken(pageToken)
+                    .execute();
+            for (File file : list.getFiles()) {
+                visited.incrementAndGet();
+                visitor.visit(file, folder);
+                if (FOLDER_MIME.equals(file.getMimeType()))
+                    push(file.getId());
+            }
+            pageToken = list.getNextPageToken();
+        } while (pageToken != null && !finished.get());
+    }
+
+    private void fail(Exception e) {
+        workers.decrementAndGet();
+        if (finished.compareAndSet(false, true)) {
+            folders.clear();
+            task.complete(null, e);
+        }
+    }
+
+    /**
+     * Receives the files and folders found during a walk. It is called from several threads at the same time.
+     */
+    public interface Visitor {
+        /**
+         * @param file     The file or folder found, with the fields requested
+         * @param parentId The id of the folder it was found in
+         * @throws Exception to stop the walk and fail its task
+         */
+        void visit(@Nonnull File file, @Nonnull String parentId) throws Exception;
+    }
+}
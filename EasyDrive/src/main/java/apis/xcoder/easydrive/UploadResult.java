@@ -0,0 +1,26 @@
+package apis.xcoder.easydrive;
+
+/**
+ * The result of an upload which is skipped when the drive already has the same content, see
+ * {@link EasyDrive#uploadFileIfChanged(java.io.File, String)}.
+ */
+public class UploadResult {
+    /**
+     * The id of the file on the drive
+     */
+    public final String fileId;
+    /**
+     * The MD5 of the local file, as lower-case hex
+     */
+    public final String md5;
+    /**
+     * false if the upload was skipped because the file on the drive has the same content
+     */
+    public final boolean uploaded;
+
+    UploadResult(String fileId, String md5, boolean uploaded) {
+        this.fileId = fileId;
+        this.md5 = md5;
+        this.uploaded = uploaded;
+    }
+}
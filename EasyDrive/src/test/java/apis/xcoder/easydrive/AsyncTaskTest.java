@@ -0,0 +1,137 @@
+package apis.xcoder.easydrive;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncTaskTest {
+
+    @Test
+    void mapAndFlatMapChainTheResults() throws Exception {
+        AsyncTask<Integer> task = AsyncTask.callAsync(() -> 20)
+                .map(value -> value + 1)
+                .flatMap(value -> AsyncTask.callAsync(() -> value * 2));
+        assertEquals(42, AsyncTask.await(task, 5));
+    }
+
+    @Test
+    void failuresSkipTheTransformations() {
+        IOException error = new IOException("failed");
+        AtomicBoolean called = new AtomicBoolean();
+        AsyncTask<Integer> task = AsyncTask.<Integer>failed(error).map(value -> {
+            called.set(true);
+            return value;
+        });
+        assertSame(error, assertThrows(IOException.class, () -> AsyncTask.await(task, 5)));
+        assertFalse(called.get());
+    }
+
+    @Test
+    void throwingTransformationFailsTheTask() {
+        AsyncTask<Integer> task = AsyncTask.completed(1).flatMap(value -> {
+            throw new IllegalStateException("broken");
+        });
+        assertThrows(IllegalStateException.class, () -> AsyncTask.await(task, 5));
+    }
+
+    @Test
+    void allOfKeepsTheOrderOfTheTasks() throws Exception {
+        AsyncTask<Integer> slow = AsyncTask.callAsync(() -> {
+            Thread.sleep(100);
+            return 1;
+        });
+        List<Integer> results = AsyncTask.await(AsyncTask.allOf(slow, AsyncTask.completed(2), AsyncTask.completed(3)), 5);
+        assertEquals(List.of(1, 2, 3), results);
+    }
+
+    @Test
+    void allOfFailsAsSoonAsOneTaskFails() {
+        AsyncTask<Integer> never = new AsyncTask<>();
+        AsyncTask<List<Integer>> all = AsyncTask.allOf(never, AsyncTask.failed(new IOException("failed")));
+        assertThrows(IOException.class, () -> AsyncTask.await(all, 5));
+    }
+
+    @Test
+    void anyOfCompletesWithTheFirstTask() throws Exception {
+        AsyncTask<String> never = new AsyncTask<>();
+        assertEquals("first", AsyncTask.await(AsyncTask.anyOf(never, AsyncTask.completed("first")), 5));
+    }
+
+    @Test
+    void cancelInterruptsTheRunningTask() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        AsyncTask<Void> task = AsyncTask.callAsync(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(task.cancel());
+        assertTrue(task.isCancelled());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertThrows(CancellationException.class, () -> AsyncTask.await(task, 5));
+        assertFalse(task.cancel());
+    }
+
+    @Test
+    void cancelledTaskIsNotRun() throws Exception {
+        AtomicBoolean ran = new AtomicBoolean();
+        CountDownLatch release = new CountDownLatch(1);
+        TaskExecutor executor = TaskExecutor.bounded(1, 10);
+        try {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            AsyncTask<Void> task = AsyncTask.callAsync(() -> {
+                ran.set(true);
+                return null;
+            }, executor);
+            task.cancel();
+            release.countDown();
+            AsyncTask.await(AsyncTask.callAsync(() -> null, executor), 5);
+            assertFalse(ran.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void completableFutureInterop() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        AsyncTask<String> task = AsyncTask.from(future);
+        assertFalse(task.isComplete());
+        future.complete("done");
+        assertEquals("done", AsyncTask.await(task, 5));
+        assertEquals("done", task.toCompletableFuture().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void timeoutFailsTheReturnedTaskOnly() {
+        AsyncTask<String> never = new AsyncTask<>();
+        assertThrows(TimeoutException.class, () -> AsyncTask.await(never.timeout(50, TimeUnit.MILLISECONDS), 5));
+        assertFalse(never.isComplete());
+    }
+}
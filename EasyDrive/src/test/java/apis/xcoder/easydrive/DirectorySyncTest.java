@@ -0,0 +1,211 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectorySyncTest {
+    private static final Pattern LOOKUP = Pattern.compile("name = '(.*)' and '(.*)' in parents");
+
+    @TempDir
+    Path temp;
+
+    private Path local;
+    private java.io.File manifest;
+    private final Drive files = new Drive();
+    private MockDrive server;
+    private EasyDrive drive;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        local = Files.createDirectories(temp.resolve("local"));
+        Files.writeString(local.resolve("a.txt"), "a");
+        Files.writeString(Files.createDirectories(local.resolve("sub")).resolve("b.txt"), "b");
+        manifest = temp.resolve("sync.manifest").toFile();
+        files.put(new File().setId("target").setName("target").setMimeType(TreeWalker.FOLDER_MIME).setParents(List.of("root")));
+        server = new MockDrive(files);
+        drive = server.newClient();
+    }
+
+    @Test
+    void unchangedFilesAreSkippedWithoutRequests() throws Exception {
+        DirectorySync.Result first = sync(new DirectorySync.Options());
+        assertTrue(first.isSuccessful(), first.failures::toString);
+        assertEquals(Set.of("a.txt", "sub/b.txt"), Set.copyOf(first.uploaded));
+        assertEquals(List.of(files.idOf("sub")), files.get(files.idOf("b.txt")).getParents());
+
+        server.requests.clear();
+        DirectorySync.Result second = sync(new DirectorySync.Options());
+        assertTrue(second.uploaded.isEmpty());
+        assertEquals(2, second.unchanged.get());
+        assertEquals(0, server.requests.size(), server.requests.toString());
+    }
+
+    @Test
+    void verifyRemoteUploadsOnlyTheFilesGoneFromTheDrive() throws Exception {
+        sync(new DirectorySync.Options());
+        files.remove(files.idOf("a.txt"));
+        // the drive fails to answer for this file, which must not be taken as deleted
+        files.broken = files.idOf("b.txt");
+        server.requests.clear();
+
+        DirectorySync.Result verified = sync(new DirectorySync.Options().setVerifyRemote(true));
+        assertEquals(List.of("a.txt"), verified.uploaded);
+        assertEquals(500, ((GoogleJsonResponseException) verified.failures.get("sub/b.txt")).getStatusCode());
+        assertEquals(0, verified.unchanged.get());
+        assertEquals(0, server.count(request -> request.method.equals("PUT") && new String(request.body, StandardCharsets.UTF_8).equals("b")));
+
+        // the file which could not be checked is still in the manifest
+        server.requests.clear();
+        DirectorySync.Result next = sync(new DirectorySync.Options());
+        assertEquals(2, next.unchanged.get());
+        assertEquals(0, server.requests.size(), server.requests.toString());
+    }
+
+    @Test
+    void foldersDeletedFromTheDriveAreCreatedAgain() throws Exception {
+        sync(new DirectorySync.Options());
+        String folder = files.idOf("sub");
+        files.remove(files.idOf("b.txt"));
+        files.remove(folder);
+        Files.writeString(local.resolve("sub").resolve("b.txt"), "b changed");
+
+        DirectorySync.Result result = sync(new DirectorySync.Options());
+        assertTrue(result.isSuccessful(), result.failures::toString);
+        assertEquals(List.of("sub/b.txt"), result.uploaded);
+        String recreated = files.idOf("sub");
+        assertNotEquals(folder, recreated);
+        assertEquals(List.of(recreated), files.get(files.idOf("b.txt")).getParents());
+
+        // the manifest records the new folder
+        server.requests.clear();
+        sync(new DirectorySync.Options());
+        assertEquals(0, server.requests.size(), server.requests.toString());
+    }
+
+    private DirectorySync.Result sync(DirectorySync.Options options) throws Exception {
+        return AsyncTask.await(drive.sync(local.toFile(), "target", manifest, options), 30);
+    }
+
+    /**
+     * The files of the drive, which lists, creates and updates them, including with resumable uploads.
+     */
+    private static final class Drive implements MockDrive.Handler {
+        private final Map<String, File> files = new ConcurrentHashMap<>();
+        private final Map<String, File> sessions = new ConcurrentHashMap<>();
+        private final AtomicInteger ids = new AtomicInteger();
+        volatile String broken;
+
+        void put(File file) {
+            files.put(file.getId(), file);
+        }
+
+        File get(String id) {
+            return files.get(id);
+        }
+
+        void remove(String id) {
+            files.remove(id);
+        }
+
+        /**
+         * @return The id of the only file with that name.
+         */
+        String idOf(String name) {
+            List<String> found = new ArrayList<>();
+            files.forEach((id, file) -> {
+                if (file.getName().equals(name))
+                    found.add(id);
+            });
+            assertEquals(1, found.size(), name);
+            return found.get(0);
+        }
+
+        @Override
+        public MockLowLevelHttpResponse handle(MockDrive.Request request) throws IOException {
+            String path = request.path();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            if (path.startsWith("/session/"))
+                return finishUpload(sessions.remove(id), request.body);
+
+            switch (request.method) {
+                case "GET":
+                    if (id.equals("files"))
+                        return list(request.parameter("q"));
+                    if (id.equals(broken))
+                        return MockDrive.error(500, "backendError");
+                    return files.containsKey(id) ? MockDrive.json(files.get(id)) : MockDrive.error(404, "notFound");
+                case "POST": {
+                    File body = request.parse(File.class);
+                    if (!files.containsKey(body.getParents().get(0)))
+                        return MockDrive.error(404, "notFound");
+                    File created = body.clone().setId("id" + ids.incrementAndGet());
+                    if (path.startsWith("/upload/"))
+                        return startUpload(created);
+                    put(created);
+                    return MockDrive.json(created);
+                }
+                case "PATCH": {
+                    File file = files.get(id);
+                    if (file == null)
+                        return MockDrive.error(404, "notFound");
+                    return startUpload(file.clone());
+                }
+                default:
+                    throw new IOException("Unexpected request " + request);
+            }
+        }
+
+        private MockLowLevelHttpResponse list(String query) throws IOException {
+            Matcher lookup = LOOKUP.matcher(query);
+            assertTrue(lookup.find(), query);
+            List<File> found = new ArrayList<>();
+            for (File file : files.values()) {
+                if (file.getName().equals(lookup.group(1)) && file.getParents().contains(lookup.group(2)))
+                    found.add(file);
+            }
+            return MockDrive.json(new FileList().setFiles(found));
+        }
+
+        private MockLowLevelHttpResponse startUpload(File file) {
+            String session = "s" + ids.incrementAndGet();
+            sessions.put(session, file);
+            return new MockLowLevelHttpResponse().addHeader("Location", MockDrive.ROOT_URL + "session/" + session);
+        }
+
+        private MockLowLevelHttpResponse finishUpload(File file, byte[] content) throws IOException {
+            try {
+                file.setMd5Checksum(String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(content))));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            put(file);
+            return MockDrive.json(file);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EasyDriveTest {
+
+    @Test
+    void batchRetriesOnlyTheFailedItems() throws Exception {
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        MockDrive server = new MockDrive(request -> {
+            String id = idOf(request);
+            int attempt = attempts.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+            if (id.equals("missing"))
+                return MockDrive.error(404, "notFound");
+            if (id.equals("flaky") && attempt == 1)
+                return MockDrive.error(500, "backendError");
+            return MockDrive.json(new File().setId(id));
+        });
+        EasyDrive drive = server.newClient();
+
+        BatchResult<File> result = AsyncTask.await(drive.getMetadata(List.of("ok", "flaky", "missing"), "id"), 10);
+        assertEquals(2, result.successes.size());
+        assertEquals("flaky", result.successes.get("flaky").getId());
+        assertEquals(404, ((GoogleJsonResponseException) result.failures.get("missing")).getStatusCode());
+        assertEquals(1, attempts.get("ok").get());
+        assertEquals(2, attempts.get("flaky").get());
+        // a file which does not exist is not asked again
+        assertEquals(1, attempts.get("missing").get());
+    }
+
+    @Test
+    void batchRetriesTheItemsRejectedDueToQuota() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        MockDrive server = new MockDrive(request -> calls.incrementAndGet() == 1
+                ? MockDrive.error(403, "userRateLimitExceeded")
+                : new MockLowLevelHttpResponse().setStatusCode(204));
+        EasyDrive drive = server.newClient();
+
+        BatchResult<Void> result = AsyncTask.await(drive.delete(List.of("file")), 10);
+        assertTrue(result.isSuccessful());
+        assertEquals(2, calls.get());
+        assertEquals(1, drive.getScheduler().getThrottledCount());
+    }
+
+    @Test
+    void createFoldersReusesTheExistingFolders() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        MockDrive server = new MockDrive(request -> {
+            if (request.method.equals("GET"))
+                return MockDrive.json(new FileList().setFiles(List.of(new File().setId("existing-id").setName("existing"))));
+            File body = request.parse(File.class);
+            assertEquals(List.of("parent"), body.getParents());
+            created.incrementAndGet();
+            return MockDrive.json(new File().setId(body.getName() + "-id"));
+        });
+        EasyDrive drive = server.newClient();
+
+        BatchResult<String> result = AsyncTask.await(drive.createFolders(List.of("existing", "new"), "parent"), 10);
+        assertEquals(Map.of("existing", "existing-id", "new", "new-id"), result.successes);
+        assertEquals(1, created.get());
+        // a trashed folder, or a file with the same name, is not taken for the folder
+        String query = server.requests.get(0).parameter("q");
+        assertTrue(query.contains("trashed = false"), query);
+        assertTrue(query.contains("mimeType = '" + TreeWalker.FOLDER_MIME + "'"), query);
+    }
+
+    private static String idOf(MockDrive.Request request) {
+        return request.path().substring(request.path().lastIndexOf('/') + 1);
+    }
+}
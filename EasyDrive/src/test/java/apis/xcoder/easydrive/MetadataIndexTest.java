@@ -0,0 +1,66 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.StartPageToken;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetadataIndexTest {
+    private MockDrive server;
+    private EasyDrive drive;
+
+    @BeforeEach
+    void buildIndex() throws Exception {
+        server = new MockDrive(request -> {
+            if (request.path().endsWith("/changes/startPageToken"))
+                return MockDrive.json(new StartPageToken().setStartPageToken("1"));
+            if (request.path().endsWith("/files/root"))
+                return MockDrive.json(new File().setId("root-id"));
+            String query = request.parameter("q");
+            if (query.equals("trashed = false"))
+                return MockDrive.json(new FileList().setFiles(List.of(
+                        new File().setId("docs").setName("docs").setMimeType(TreeWalker.FOLDER_MIME).setParents(List.of("root-id")),
+                        new File().setId("a").setName("a.txt").setSize(10L).setMd5Checksum("md5-a").setParents(List.of("docs")),
+                        new File().setId("b").setName("b.txt").setSize(5L).setMd5Checksum("md5-b").setParents(List.of("root-id")))));
+            // a folder the index does not know
+            assertTrue(query.contains("'other' in parents"), query);
+            return MockDrive.json(new FileList().setFiles(List.of(
+                    new File().setId("c").setName("c.txt").setSize(7L).setMimeType("text/plain").setParents(List.of("other")))));
+        });
+        drive = server.newClient();
+        MetadataIndex index = new MetadataIndex(drive);
+        index.build();
+        drive.setMetadataIndex(index);
+        server.requests.clear();
+    }
+
+    @Test
+    void answersFromTheIndexWithoutRequests() throws Exception {
+        assertEquals(10L, AsyncTask.await(drive.getFileSize("docs"), 10));
+        assertEquals(15L, AsyncTask.await(drive.getFileSize("root"), 10));
+        FileMetadata[] files = AsyncTask.await(drive.listFiles("docs"), 10);
+        assertEquals(1, files.length);
+        assertEquals("a.txt", files[0].name);
+        assertEquals("a.txt", AsyncTask.await(drive.getName("a"), 10));
+        assertEquals("b", drive.findFile("b.txt", null).getId());
+        assertEquals(0, server.requests.size(), server.requests.toString());
+    }
+
+    @Test
+    void fallsBackToTheDriveForFoldersOutOfTheIndex() throws Exception {
+        FileMetadata[] files = AsyncTask.await(drive.listFiles("other"), 10);
+        assertEquals(1, files.length);
+        assertEquals("c.txt", files[0].name);
+        assertEquals(1, server.requests.size());
+
+        assertEquals(7L, AsyncTask.await(drive.getFileSize("other"), 10));
+        assertEquals(2, server.requests.size());
+    }
+}
@@ -0,0 +1,222 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A scripted stand-in for the Drive API, to test how {@link EasyDrive} behaves when requests fail. Every request,
+ * including each part of a batch, is recorded and passed to the handler of the test, which returns its response or
+ * throws an {@link IOException} to simulate a broken connection.
+ */
+class MockDrive extends MockHttpTransport {
+    static final String ROOT_URL = "http://drive.test/";
+    private static final String BATCH_BOUNDARY = "batch_mock_drive";
+    private static final JsonFactory JSON = GsonFactory.getDefaultInstance();
+
+    final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+    private final Handler handler;
+
+    MockDrive(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return A client sending its requests to this mock, without rate limit and with short back-offs.
+     */
+    EasyDrive newClient() {
+        EasyDrive drive = new EasyDrive(this, null, ROOT_URL);
+        drive.getScheduler().setRateLimit(0, 1);
+        drive.getScheduler().setBackoff(1, 10, TimeUnit.MILLISECONDS);
+        return drive;
+    }
+
+    /**
+     * @return The number of requests recorded so far which match the filter.
+     */
+    int count(Predicate<Request> filter) {
+        synchronized (requests) {
+            return (int) requests.stream().filter(filter).count();
+        }
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                if (getStreamingContent() != null)
+                    getStreamingContent().writeTo(body);
+                Map<String, String> headers = new HashMap<>();
+                getHeaders().forEach((name, values) -> headers.put(name.toLowerCase(Locale.ROOT), values.get(0)));
+                if (getContentType() != null)
+                    headers.put("content-type", getContentType());
+                byte[] content = body.toByteArray();
+                if ("gzip".equals(getContentEncoding())) {
+                    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                        content = in.readAllBytes();
+                    }
+                }
+                String override = headers.get("x-http-method-override");
+                Request request = new Request(override == null ? method : override, url, headers, content);
+                if (request.path().startsWith("/batch"))
+                    return batch(request);
+                requests.add(request);
+                return handler.handle(request);
+            }
+        };
+    }
+
+    /**
+     * Answers a batch by passing each of its parts to the handler, as the server does.
+     */
+    private MockLowLevelHttpResponse batch(Request batch) throws IOException {
+        String boundary = batch.header("content-type").replaceAll(".*boundary=\"?([^\";]+)\"?.*", "$1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int number = 0;
+        String text = new String(batch.body, StandardCharsets.ISO_8859_1);
+        for (String part : text.split("--" + Pattern.quote(boundary))) {
+            int split = part.indexOf("\r\n\r\n");
+            if (split < 0)
+                continue;
+            // the headers of the part are followed by a whole http request
+            String request = part.substring(split + 4);
+            int headerEnd = request.indexOf("\r\n\r\n");
+            String[] lines = (headerEnd < 0 ? request.trim() : request.substring(0, headerEnd)).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0)
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+            String body = headerEnd < 0 ? "" : request.substring(headerEnd + 4).replaceAll("\r\n$", "");
+            String url = requestLine[1].startsWith("/") ? ROOT_URL + requestLine[1].substring(1) : requestLine[1];
+            Request item = new Request(requestLine[0], url, headers, body.getBytes(StandardCharsets.ISO_8859_1));
+            requests.add(item);
+            MockLowLevelHttpResponse response = handler.handle(item);
+
+            byte[] content = response.getContent() == null ? new byte[0] : response.getContent().readAllBytes();
+            StringBuilder head = new StringBuilder()
+                    .append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(++number).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(response.getStatusCode()).append(" Status\r\n");
+            if (response.getContentType() != null)
+                head.append("Content-Type: ").append(response.getContentType()).append("\r\n");
+            for (int i = 0; i < response.getHeaderCount(); i++)
+                head.append(response.getHeaderName(i)).append(": ").append(response.getHeaderValue(i)).append("\r\n");
+            head.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(content);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write(("--" + BATCH_BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return new MockLowLevelHttpResponse()
+                .setContentType("multipart/mixed; boundary=" + BATCH_BOUNDARY)
+                .setContent(out.toByteArray());
+    }
+
+    /**
+     * @return A successful response with the given object, like a {@link com.google.api.services.drive.model.File},
+     * as JSON.
+     */
+    static MockLowLevelHttpResponse json(Object content) throws IOException {
+        return new MockLowLevelHttpResponse()
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(JSON.toString(content));
+    }
+
+    /**
+     * @return An error response of the Drive API.
+     */
+    static MockLowLevelHttpResponse error(int status, String reason) {
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(status)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent("{\"error\":{\"code\":" + status + ",\"message\":\"" + reason + "\",\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\",\"message\":\"" + reason + "\"}]}}");
+    }
+
+    interface Handler {
+        MockLowLevelHttpResponse handle(Request request) throws IOException;
+    }
+
+    /**
+     * A request received by the mock.
+     */
+    static final class Request {
+        final String method;
+        final String url;
+        final byte[] body;
+        private final Map<String, String> headers;
+
+        Request(String method, String url, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @return The path of the url, like "/drive/v3/files/id".
+         */
+        String path() {
+            return URI.create(url).getRawPath();
+        }
+
+        /**
+         * @return The decoded value of the query parameter, null if absent.
+         */
+        String parameter(String name) {
+            String query = URI.create(url).getRawQuery();
+            if (query == null)
+                return null;
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                String key = equals < 0 ? pair : pair.substring(0, equals);
+                if (key.equals(name))
+                    return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+            return null;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return The body parsed as the given class.
+         */
+        <T> T parse(Class<T> type) throws IOException {
+            return JSON.fromString(new String(body, StandardCharsets.UTF_8), type);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url;
+        }
+    }
+}
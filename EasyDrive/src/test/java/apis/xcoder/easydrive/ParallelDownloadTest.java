@@ -0,0 +1,135 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.model.File;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelDownloadTest {
+    private static final int MB = 1024 * 1024;
+    // split in ranges of 4 MB, the last one starting at 8 MB
+    private static final byte[] DATA = new byte[9 * MB];
+    private static final Predicate<MockDrive.Request> MEDIA = request -> "media".equals(request.parameter("alt"));
+
+    static {
+        new Random(9).nextBytes(DATA);
+    }
+
+    @TempDir
+    Path directory;
+
+    private volatile String revision = "1";
+
+    @Test
+    void retriesARangeWhichEndsEarly() throws Exception {
+        AtomicBoolean truncated = new AtomicBoolean();
+        MockDrive server = new MockDrive(request -> {
+            if (MEDIA.test(request) && rangeStart(request) == 4 * MB && truncated.compareAndSet(false, true))
+                return new MockLowLevelHttpResponse().setStatusCode(206).setContent(Arrays.copyOfRange(DATA, 4 * MB, 5 * MB));
+            return respond(request);
+        });
+        EasyDrive drive = server.newClient();
+
+        java.io.File file = AsyncTask.await(drive.download("id", directory.toString(), 3, new Listener()), 60);
+        assertArrayEquals(DATA, Files.readAllBytes(file.toPath()));
+        assertFalse(Files.exists(directory.resolve("file.bin.part")));
+        // the retry asks only for the rest of the range
+        assertEquals(1, server.count(request -> MEDIA.test(request) && rangeStart(request) == 5 * MB));
+        assertEquals(4, server.count(MEDIA));
+    }
+
+    @Test
+    void resumesFromTheRangesAlreadyWritten() throws Exception {
+        EasyDrive drive = failLastRangeOnce().newClient();
+        assertThrows(IOException.class, () -> AsyncTask.await(drive.download("id", directory.toString(), 1, new Listener()), 60));
+        assertTrue(Files.exists(directory.resolve("file.bin.part")));
+
+        MockDrive server = new MockDrive(this::respond);
+        java.io.File file = AsyncTask.await(server.newClient().download("id", directory.toString(), 3, new Listener()), 60);
+        assertArrayEquals(DATA, Files.readAllBytes(file.toPath()));
+        assertEquals(1, server.count(MEDIA));
+        assertEquals(1, server.count(request -> MEDIA.test(request) && rangeStart(request) == 8 * MB));
+    }
+
+    @Test
+    void startsOverWhenTheFileChangedBeforeTheResume() throws Exception {
+        EasyDrive drive = failLastRangeOnce().newClient();
+        assertThrows(IOException.class, () -> AsyncTask.await(drive.download("id", directory.toString(), 1, new Listener()), 60));
+
+        revision = "2";
+        MockDrive server = new MockDrive(this::respond);
+        java.io.File file = AsyncTask.await(server.newClient().download("id", directory.toString(), 3, new Listener()), 60);
+        assertArrayEquals(DATA, Files.readAllBytes(file.toPath()));
+        assertEquals(3, server.count(MEDIA));
+    }
+
+    @Test
+    void failsWhenTheFileChangesDuringTheDownload() throws Exception {
+        MockDrive server = new MockDrive(request -> {
+            // the version is asked again once the ranges are written
+            if ("headRevisionId,md5Checksum".equals(request.parameter("fields")))
+                revision = "2";
+            return respond(request);
+        });
+        EasyDrive drive = server.newClient();
+
+        IOException error = assertThrows(IOException.class, () -> AsyncTask.await(drive.download("id", directory.toString(), 3, new Listener()), 60));
+        assertTrue(error.getMessage().contains("modified"), error.getMessage());
+        // nothing written is kept for the next download
+        assertEquals(0, Files.size(directory.resolve("file.bin.part")));
+    }
+
+    /**
+     * @return A drive ignoring the request for the last range once, which fails a download without retrying.
+     */
+    private MockDrive failLastRangeOnce() {
+        AtomicBoolean ignored = new AtomicBoolean();
+        return new MockDrive(request -> {
+            if (MEDIA.test(request) && rangeStart(request) == 8 * MB && ignored.compareAndSet(false, true))
+                return new MockLowLevelHttpResponse().setContent(DATA);
+            return respond(request);
+        });
+    }
+
+    private MockLowLevelHttpResponse respond(MockDrive.Request request) throws IOException {
+        if (!MEDIA.test(request))
+            return MockDrive.json(new File().setName("file.bin").setSize((long) DATA.length).setHeadRevisionId(revision));
+        String range = request.header("range");
+        int end = Integer.parseInt(range.substring(range.indexOf('-') + 1));
+        return new MockLowLevelHttpResponse().setStatusCode(206).setContent(Arrays.copyOfRange(DATA, rangeStart(request), end + 1));
+    }
+
+    private static int rangeStart(MockDrive.Request request) {
+        String range = request.header("range");
+        return Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    private static final class Listener implements EasyDrive.ProgressListener {
+        @Override
+        public void onProgress(int percentage) {
+        }
+
+        @Override
+        public void onFinish(String fileId) {
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+        }
+    }
+}
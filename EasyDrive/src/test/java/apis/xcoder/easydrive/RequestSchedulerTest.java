@@ -0,0 +1,83 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.model.File;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RequestSchedulerTest {
+
+    @Test
+    void streamsLeftOpenDoNotHoldTheirSlot() throws Exception {
+        MockDrive server = new MockDrive(request -> MockDrive.json(new File().setId("id")));
+        EasyDrive drive = server.newClient();
+        drive.getScheduler().setConcurrencyLimits(1, 2);
+
+        // more streams than slots: opening them would block if the slots were freed only when they are closed
+        List<InputStream> streams = new ArrayList<>();
+        AsyncTask<Void> open = AsyncTask.callAsync(() -> {
+            for (int i = 0; i < 10; i++)
+                streams.add(drive.drive.files().get("file" + i).executeMediaAsInputStream());
+            return null;
+        });
+        AsyncTask.await(open, 10);
+        assertEquals(0, drive.getScheduler().getInFlightCount());
+        for (InputStream stream : streams)
+            stream.close();
+    }
+
+    @Test
+    void failedRequestsFreeTheirSlot() throws Exception {
+        MockDrive server = new MockDrive(request -> MockDrive.error(404, "notFound"));
+        EasyDrive drive = server.newClient();
+        drive.getScheduler().setConcurrencyLimits(1, 1);
+
+        for (int i = 0; i < 3; i++)
+            assertThrows(GoogleJsonResponseException.class, () -> drive.drive.files().get("missing").execute());
+        assertEquals(0, drive.getScheduler().getInFlightCount());
+    }
+
+    @Test
+    void quotaErrorsAreRetried() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        MockDrive server = new MockDrive(request -> calls.incrementAndGet() == 1
+                ? MockDrive.error(403, "userRateLimitExceeded")
+                : MockDrive.json(new File().setId("id").setName("name")));
+        EasyDrive drive = server.newClient();
+
+        assertEquals("name", drive.drive.files().get("id").execute().getName());
+        assertEquals(2, calls.get());
+        assertEquals(1, drive.getScheduler().getThrottledCount());
+        assertEquals(0, drive.getScheduler().getInFlightCount());
+    }
+
+    @Test
+    void otherForbiddenErrorsKeepTheirDetails() {
+        MockDrive server = new MockDrive(request -> MockDrive.error(403, "insufficientFilePermissions"));
+        EasyDrive drive = server.newClient();
+
+        GoogleJsonResponseException error = assertThrows(GoogleJsonResponseException.class, () -> drive.drive.files().get("id").execute());
+        assertEquals("insufficientFilePermissions", error.getDetails().getErrors().get(0).getReason());
+        assertEquals(1, server.requests.size());
+        assertEquals(0, drive.getScheduler().getThrottledCount());
+    }
+
+    @Test
+    void batchesTakeOneSlotAndFreeIt() throws Exception {
+        MockDrive server = new MockDrive(request -> MockDrive.json(new File().setId(request.path().substring(request.path().lastIndexOf('/') + 1))));
+        EasyDrive drive = server.newClient();
+        drive.getScheduler().setConcurrencyLimits(1, 1);
+
+        BatchResult<File> result = AsyncTask.await(drive.getMetadata(List.of("a", "b", "c"), "id"), 10);
+        assertEquals(3, result.successes.size());
+        assertEquals(0, drive.getScheduler().getInFlightCount());
+    }
+}
@@ -0,0 +1,125 @@
+package apis.xcoder.easydrive;
+
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResumableUploadTest {
+    private static final int CHUNK = ResumableUpload.CHUNK_GRANULARITY;
+
+    @TempDir
+    Path sessions;
+
+    @Test
+    void resendsOnlyWhatTheServerDidNotReceive() throws Exception {
+        Session session = new Session();
+        AtomicInteger puts = new AtomicInteger();
+        AtomicInteger queries = new AtomicInteger();
+        MockDrive server = new MockDrive(request -> session.handle(request, () -> {
+            // the first chunk breaks after 1000 bytes are received, and so does the first status query
+            if (request.header("content-range").startsWith("bytes */"))
+                return queries.incrementAndGet() == 1;
+            return puts.incrementAndGet() == 1;
+        }));
+        EasyDrive drive = server.newClient();
+        drive.setUploadChunkSize(CHUNK);
+
+        byte[] data = random(CHUNK * 2 + 1000);
+        ResumableUpload upload = drive.uploadResumable("file.bin", new ByteArrayInputStream(data), data.length, null, null);
+        assertEquals("uploaded", AsyncTask.await(upload.getTask(), 60));
+        assertArrayEquals(data, session.received.toByteArray());
+        assertEquals(2, queries.get());
+        assertEquals(1, server.count(request -> request.method.equals("POST")));
+    }
+
+    @Test
+    void resumesTheSavedSessionAfterAFailure() throws Exception {
+        Session session = new Session();
+        AtomicInteger puts = new AtomicInteger();
+        AtomicInteger queries = new AtomicInteger();
+        MockDrive server = new MockDrive(request -> {
+            boolean query = "PUT".equals(request.method) && request.header("content-range").startsWith("bytes */");
+            // the second chunk is rejected, then the first status query of the resumed upload fails on the server
+            if (query && queries.incrementAndGet() == 1)
+                return MockDrive.error(503, "backendError");
+            if ("PUT".equals(request.method) && !query && puts.incrementAndGet() == 2)
+                return MockDrive.error(400, "badRequest");
+            return session.handle(request, () -> false);
+        });
+        EasyDrive drive = server.newClient();
+        drive.setUploadChunkSize(CHUNK);
+        drive.setUploadSessionDirectory(sessions.toFile());
+
+        byte[] data = random(CHUNK * 3);
+        ResumableUpload failed = drive.uploadResumable("file.bin", new ByteArrayInputStream(data), data.length, null, "v1", null);
+        assertThrows(IOException.class, () -> AsyncTask.await(failed.getTask(), 60));
+        assertEquals(CHUNK, session.received.size());
+
+        ResumableUpload resumed = drive.uploadResumable("file.bin", new ByteArrayInputStream(data), data.length, null, "v1", null);
+        assertEquals("uploaded", AsyncTask.await(resumed.getTask(), 60));
+        assertArrayEquals(data, session.received.toByteArray());
+        // the session of the first upload was used again
+        assertEquals(1, server.count(request -> request.method.equals("POST")));
+        assertEquals(failed.getSessionUri(), resumed.getSessionUri());
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * The server side of a resumable upload session, keeping the bytes received.
+     */
+    private static final class Session {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        MockLowLevelHttpResponse handle(MockDrive.Request request, Failure failure) throws IOException {
+            if (request.method.equals("GET"))
+                return MockDrive.json(new FileList().setFiles(List.of()));
+            if (request.method.equals("POST"))
+                return new MockLowLevelHttpResponse().addHeader("Location", MockDrive.ROOT_URL + "upload/session");
+
+            String range = request.header("content-range");
+            long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+            if (!range.startsWith("bytes */")) {
+                long from = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+                assertEquals(received.size(), from, "offset of the chunk");
+                if (failure.breaks()) {
+                    received.write(request.body, 0, 1000);
+                    throw new IOException("Connection reset");
+                }
+                received.write(request.body);
+            } else if (failure.breaks()) {
+                throw new IOException("Connection reset");
+            }
+
+            if (received.size() == total)
+                return MockDrive.json(new File().setId("uploaded"));
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(308);
+            if (received.size() > 0)
+                response.addHeader("Range", "bytes=0-" + (received.size() - 1));
+            return response;
+        }
+    }
+
+    private interface Failure {
+        boolean breaks();
+    }
+}